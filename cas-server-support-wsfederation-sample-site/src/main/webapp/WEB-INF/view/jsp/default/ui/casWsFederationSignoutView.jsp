@@ -0,0 +1,10 @@
+<%--
+    Rendered when the IdP signs the user out (wa=wsignout1.0 or wsignoutcleanup1.0). The IdP loads this page in a
+    frame and expects a plain 200 response: unlike casLogoutView, it must not redirect back to the IdP.
+--%>
+<jsp:directive.include file="includes/top.jsp" />
+  <div id="msg" class="success">
+    <h2><spring:message code="screen.logout.header" /></h2>
+    <p><spring:message code="screen.logout.success" /></p>
+  </div>
+<jsp:directive.include file="includes/bottom.jsp" />
@@ -0,0 +1,407 @@
+package org.example.cas.support.wsfederation.load;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives concurrent virtual users through the complete WS-Federation login of the sample site: the CAS login
+ * redirect, the STS sign in, the callback handled by WsFederationAction and the redirect back to the service with
+ * a service ticket. It reports logins per second and latency percentiles of the whole round trip.
+ *
+ * <p>By default the {@link MockSecurityTokenService} is started in the same JVM. The driver is configured with
+ * system properties, which the {@code load} profile of the sample site sets:</p>
+ *
+ * <pre>
+ * mvn -Pload verify -Dload.users=50 -Dload.duration=120 -Dload.casLoginUrl=https://localhost:8443/cas/login
+ * </pre>
+ *
+ * @author jgasper
+ * @since 1.0.1
+ */
+public final class LoadDriver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadDriver.class);
+
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*action=\"([^\"]*)\"");
+
+    private static final Pattern HIDDEN_INPUT = Pattern.compile("<input type=\"hidden\" name=\"([^\"]*)\" value=\"([^\"]*)\"");
+
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final String casLoginUrl;
+
+    private final String service;
+
+    private final int users;
+
+    private final long warmUpMillis;
+
+    private final long durationMillis;
+
+    private volatile long measureFrom;
+
+    private volatile long measureUntil;
+
+    /**
+     * creates the driver.
+     *
+     * @param casLoginUrl    the CAS login url
+     * @param service        the service the virtual users log in to
+     * @param users          the number of concurrent virtual users
+     * @param warmUpMillis   how long to run before measuring
+     * @param durationMillis how long to measure
+     */
+    public LoadDriver(final String casLoginUrl, final String service, final int users, final long warmUpMillis,
+                      final long durationMillis) {
+        this.casLoginUrl = casLoginUrl;
+        this.service = service;
+        this.users = users;
+        this.warmUpMillis = warmUpMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * runs the virtual users and prints the report.
+     *
+     * @throws InterruptedException if interrupted while waiting for the virtual users
+     */
+    public void run() throws InterruptedException {
+        final VirtualUser[] virtualUsers = new VirtualUser[this.users];
+        final CountDownLatch done = new CountDownLatch(this.users);
+        this.measureFrom = System.currentTimeMillis() + this.warmUpMillis;
+        this.measureUntil = this.measureFrom + this.durationMillis;
+
+        for (int i = 0; i < this.users; i++) {
+            virtualUsers[i] = new VirtualUser("vu" + i, done);
+            final Thread thread = new Thread(virtualUsers[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        int count = 0;
+        for (final VirtualUser user : virtualUsers) {
+            count += user.size;
+        }
+        final long[] latencies = new long[count];
+        int offset = 0;
+        for (final VirtualUser user : virtualUsers) {
+            System.arraycopy(user.latencies, 0, latencies, offset, user.size);
+            offset += user.size;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("users               %d%n", this.users);
+        System.out.printf("logins              %d%n", count);
+        System.out.printf("logins/sec          %.1f%n", count * 1000.0 / this.durationMillis);
+        System.out.printf("latency p50         %.1f ms%n", percentile(latencies, 50) / 1000000.0);
+        System.out.printf("latency p90         %.1f ms%n", percentile(latencies, 90) / 1000000.0);
+        System.out.printf("latency p99         %.1f ms%n", percentile(latencies, 99) / 1000000.0);
+        System.out.printf("latency max         %.1f ms%n", percentile(latencies, 100) / 1000000.0);
+        for (final Map.Entry<String, AtomicLong> entry : this.failures.entrySet()) {
+            System.out.printf("failed %-12s %d%n", entry.getKey(), entry.getValue().get());
+        }
+    }
+
+    /**
+     * gets a percentile of sorted values.
+     *
+     * @param sorted     the sorted values
+     * @param percentile the percentile, between 0 and 100
+     * @return the value, or 0 if there are no values
+     */
+    static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * counts a failed login.
+     *
+     * @param stage the step that failed
+     */
+    private void fail(final String stage) {
+        AtomicLong count = this.failures.get(stage);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = this.failures.putIfAbsent(stage, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * A user logging in again and again, each time with a fresh cookie jar.
+     */
+    private final class VirtualUser implements Runnable {
+        private final String name;
+
+        private final CountDownLatch done;
+
+        private long[] latencies = new long[1024];
+
+        private int size;
+
+        /**
+         * creates a virtual user.
+         *
+         * @param name the user name sent to the STS
+         * @param done the latch counted down when the user stops
+         */
+        VirtualUser(final String name, final CountDownLatch done) {
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long now = System.currentTimeMillis();
+                while (now < measureUntil) {
+                    final long start = System.nanoTime();
+                    final boolean success = login();
+                    final long latency = System.nanoTime() - start;
+                    now = System.currentTimeMillis();
+                    if (success && now >= measureFrom && now < measureUntil) {
+                        record(latency);
+                    }
+                }
+            } finally {
+                this.done.countDown();
+            }
+        }
+
+        /**
+         * runs one login round trip.
+         *
+         * @return true if CAS redirected back to the service with a ticket
+         */
+        private boolean login() {
+            final Map<String, String> cookies = new HashMap<String, String>();
+            try {
+                final HttpURLConnection login = open(casLoginUrl + "?service=" + URLEncoder.encode(service, "UTF-8"),
+                        cookies);
+                final String stsUrl = login.getHeaderField("Location");
+                drain(login);
+                if (login.getResponseCode() != HttpURLConnection.HTTP_MOVED_TEMP || stsUrl == null) {
+                    fail("redirect");
+                    return false;
+                }
+
+                final HttpURLConnection sts = open(stsUrl + "&username=" + this.name, cookies);
+                final String form = drain(sts);
+                final Matcher action = FORM_ACTION.matcher(form);
+                if (sts.getResponseCode() != HttpURLConnection.HTTP_OK || !action.find()) {
+                    fail("sts");
+                    return false;
+                }
+
+                final Map<String, String> fields = new LinkedHashMap<String, String>();
+                final Matcher input = HIDDEN_INPUT.matcher(form);
+                while (input.find()) {
+                    fields.put(input.group(1), StringEscapeUtils.unescapeHtml(input.group(2)));
+                }
+
+                final HttpURLConnection callback = post(StringEscapeUtils.unescapeHtml(action.group(1)), fields, cookies);
+                final String location = callback.getHeaderField("Location");
+                drain(callback);
+                if (callback.getResponseCode() != HttpURLConnection.HTTP_MOVED_TEMP || location == null
+                        || !location.contains("ticket=")) {
+                    fail("callback");
+                    return false;
+                }
+                return true;
+            } catch (final IOException ex) {
+                LOGGER.debug("login failed", ex);
+                fail("io");
+                return false;
+            }
+        }
+
+        /**
+         * records the latency of a login.
+         *
+         * @param latency the latency in nanoseconds
+         */
+        private void record(final long latency) {
+            if (this.size == this.latencies.length) {
+                this.latencies = Arrays.copyOf(this.latencies, this.size * 2);
+            }
+            this.latencies[this.size++] = latency;
+        }
+    }
+
+    /**
+     * sends a GET request without following redirects.
+     *
+     * @param url     the url
+     * @param cookies the cookie jar
+     * @return the connection
+     * @throws IOException if the request fails
+     */
+    private static HttpURLConnection open(final String url, final Map<String, String> cookies) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        sendCookies(connection, cookies);
+        receiveCookies(connection, cookies);
+        return connection;
+    }
+
+    /**
+     * sends a form POST request without following redirects.
+     *
+     * @param url     the url
+     * @param fields  the form fields
+     * @param cookies the cookie jar
+     * @return the connection
+     * @throws IOException if the request fails
+     */
+    private static HttpURLConnection post(final String url, final Map<String, String> fields,
+                                          final Map<String, String> cookies) throws IOException {
+        final StringBuilder body = new StringBuilder();
+        for (final Map.Entry<String, String> field : fields.entrySet()) {
+            if (body.length() > 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(field.getKey(), "UTF-8")).append('=')
+                .append(URLEncoder.encode(field.getValue(), "UTF-8"));
+        }
+        final byte[] bytes = body.toString().getBytes("UTF-8");
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setFixedLengthStreamingMode(bytes.length);
+        sendCookies(connection, cookies);
+        try (final OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        }
+        receiveCookies(connection, cookies);
+        return connection;
+    }
+
+    /**
+     * adds the cookie header.
+     *
+     * @param connection the connection
+     * @param cookies    the cookie jar
+     */
+    private static void sendCookies(final HttpURLConnection connection, final Map<String, String> cookies) {
+        if (!cookies.isEmpty()) {
+            final StringBuilder header = new StringBuilder();
+            for (final Map.Entry<String, String> cookie : cookies.entrySet()) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            connection.setRequestProperty("Cookie", header.toString());
+        }
+    }
+
+    /**
+     * stores the cookies set by the response.
+     *
+     * @param connection the connection
+     * @param cookies    the cookie jar
+     * @throws IOException if the response cannot be read
+     */
+    private static void receiveCookies(final HttpURLConnection connection, final Map<String, String> cookies)
+            throws IOException {
+        final List<String> headers = connection.getHeaderFields().get("Set-Cookie");
+        if (headers != null) {
+            for (final String header : headers) {
+                final int equals = header.indexOf('=');
+                final int end = header.indexOf(';');
+                if (equals > 0) {
+                    cookies.put(header.substring(0, equals),
+                            header.substring(equals + 1, end > equals ? end : header.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * reads the response body so the connection can be reused.
+     *
+     * @param connection the connection
+     * @return the body
+     * @throws IOException if the body cannot be read
+     */
+    private static String drain(final HttpURLConnection connection) throws IOException {
+        final InputStream in = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * runs the load test.
+     *
+     * @param args unused; the driver is configured with system properties
+     * @throws Exception if the mock STS cannot start
+     */
+    public static void main(final String[] args) throws Exception {
+        final String casLoginUrl = System.getProperty("load.casLoginUrl", "http://localhost:8080/cas/login");
+        final String service = System.getProperty("load.service", "http://localhost:8080/app");
+        final int users = Integer.getInteger("load.users", 10);
+        final long warmUp = Long.getLong("load.warmup", 10) * 1000;
+        final long duration = Long.getLong("load.duration", 60) * 1000;
+        final boolean embeddedSts = Boolean.parseBoolean(System.getProperty("load.embeddedSts", "true"));
+
+        MockSecurityTokenService sts = null;
+        if (embeddedSts) {
+            final int port = Integer.getInteger("load.stsPort", 9090);
+            sts = new MockSecurityTokenService(
+                    System.getProperty("load.stsIssuer", "http://localhost:" + port + "/adfs/services/trust"),
+                    casLoginUrl);
+            sts.start(port, Math.max(users, Runtime.getRuntime().availableProcessors()));
+        }
+
+        try {
+            new LoadDriver(casLoginUrl, service, users, warmUp, duration).run();
+        } finally {
+            if (sts != null) {
+                sts.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package org.example.cas.support.wsfederation.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.saml1.core.Attribute;
+import org.opensaml.saml1.core.AttributeStatement;
+import org.opensaml.saml1.core.AttributeValue;
+import org.opensaml.saml1.core.Audience;
+import org.opensaml.saml1.core.AudienceRestrictionCondition;
+import org.opensaml.saml1.core.AuthenticationStatement;
+import org.opensaml.saml1.core.ConfirmationMethod;
+import org.opensaml.saml1.core.Conditions;
+import org.opensaml.saml1.core.Subject;
+import org.opensaml.saml1.core.SubjectConfirmation;
+import org.opensaml.ws.wsfed.RequestSecurityTokenResponse;
+import org.opensaml.ws.wsfed.RequestedSecurityToken;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.schema.XSAny;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in ADFS security token service for load testing the sample site without a real ADFS.
+ *
+ * <p>It answers wsignin1.0 requests with a SAML 1.1 RequestSecurityTokenResponse signed by the test key in
+ * {@code mock-sts/mock-sts.jks}, wrapped in a form that posts itself back to CAS, as ADFS does. The user is taken
+ * from the {@code username} parameter, or numbered sequentially. Point CAS at it with:</p>
+ *
+ * <pre>
+ * adfs.idp.id=http://localhost:9090/adfs/services/trust
+ * adfs.idp.login.url=http://localhost:9090/adfs/ls/
+ * adfs.identity.attribute=upn
+ * adfs.relying.party=urn:federation:cas
+ * adfs.signing.cert=file:src/test/resources/mock-sts/mock-sts-signing.crt
+ * </pre>
+ *
+ * @author jgasper
+ * @since 1.0.1
+ */
+public final class MockSecurityTokenService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MockSecurityTokenService.class);
+
+    private static final String CLAIMS_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
+
+    private static final String BEARER = "urn:oasis:names:tc:SAML:1.0:cm:bearer";
+
+    private static final String WINDOWS_AUTHENTICATION = "urn:federation:authentication:windows";
+
+    private final AtomicLong userCounter = new AtomicLong();
+
+    private final XMLObjectBuilderFactory builderFactory;
+
+    private final BasicX509Credential signingCredential;
+
+    private final String issuer;
+
+    private final String replyUrl;
+
+    private HttpServer server;
+
+    /**
+     * creates the STS.
+     *
+     * @param issuer   the issuer of the tokens, which CAS expects as adfs.idp.id
+     * @param replyUrl the CAS login url the tokens are posted to when the request has no wreply
+     * @throws Exception if OpenSAML cannot be initialized or the test key cannot be read
+     */
+    public MockSecurityTokenService(final String issuer, final String replyUrl) throws Exception {
+        DefaultBootstrap.bootstrap();
+        this.builderFactory = Configuration.getBuilderFactory();
+        this.issuer = issuer;
+        this.replyUrl = replyUrl;
+
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (final InputStream in = MockSecurityTokenService.class.getResourceAsStream("/mock-sts/mock-sts.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        this.signingCredential = new BasicX509Credential();
+        this.signingCredential.setEntityCertificate((X509Certificate) keyStore.getCertificate("mock-sts"));
+        this.signingCredential.setPrivateKey((PrivateKey) keyStore.getKey("mock-sts", "changeit".toCharArray()));
+    }
+
+    /**
+     * starts listening.
+     *
+     * @param port    the port
+     * @param threads the number of request threads
+     * @throws IOException if the port cannot be bound
+     */
+    public void start(final int port, final int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.server.createContext("/adfs/ls/", new SignInHandler());
+        this.server.setExecutor(Executors.newFixedThreadPool(threads));
+        this.server.start();
+        LOGGER.info("Mock STS listening on http://localhost:{}/adfs/ls/", port);
+    }
+
+    /**
+     * stops listening.
+     */
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+    }
+
+    /**
+     * issues a signed RequestSecurityTokenResponse.
+     *
+     * @param user  the user the token is issued for
+     * @param realm the relying party the token is issued to
+     * @return the serialized wresult
+     * @throws Exception if the token cannot be signed
+     */
+    public String issueToken(final String user, final String realm) throws Exception {
+        final DateTime now = new DateTime().withZone(DateTimeZone.UTC);
+
+        final Audience audience = build(Audience.DEFAULT_ELEMENT_NAME);
+        audience.setUri(realm);
+        final AudienceRestrictionCondition restriction = build(AudienceRestrictionCondition.DEFAULT_ELEMENT_NAME);
+        restriction.getAudiences().add(audience);
+        final Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now);
+        conditions.setNotOnOrAfter(now.plusHours(1));
+        conditions.getAudienceRestrictionConditions().add(restriction);
+
+        final AttributeStatement attributeStatement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        attributeStatement.setSubject(buildSubject());
+        attributeStatement.getAttributes().add(buildAttribute("upn", user + "@example.org"));
+        attributeStatement.getAttributes().add(buildAttribute("emailaddress", user + "@example.org"));
+        attributeStatement.getAttributes().add(buildAttribute("givenname", user));
+        attributeStatement.getAttributes().add(buildAttribute("surname", "Load"));
+
+        final AuthenticationStatement authenticationStatement = build(AuthenticationStatement.DEFAULT_ELEMENT_NAME);
+        authenticationStatement.setSubject(buildSubject());
+        authenticationStatement.setAuthenticationMethod(WINDOWS_AUTHENTICATION);
+        authenticationStatement.setAuthenticationInstant(now);
+
+        final Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setVersion(SAMLVersion.VERSION_11);
+        assertion.setID("_" + UUID.randomUUID());
+        assertion.setIssuer(this.issuer);
+        assertion.setIssueInstant(now);
+        assertion.setConditions(conditions);
+        assertion.getAttributeStatements().add(attributeStatement);
+        assertion.getAuthenticationStatements().add(authenticationStatement);
+
+        final Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(this.signingCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        final X509KeyInfoGeneratorFactory keyInfoFactory = new X509KeyInfoGeneratorFactory();
+        keyInfoFactory.setEmitEntityCertificate(true);
+        signature.setKeyInfo(keyInfoFactory.newInstance().generate(this.signingCredential));
+        assertion.setSignature(signature);
+
+        final RequestedSecurityToken requestedToken = build(RequestedSecurityToken.DEFAULT_ELEMENT_NAME);
+        requestedToken.getSecurityTokens().add(assertion);
+        final RequestSecurityTokenResponse response = build(RequestSecurityTokenResponse.DEFAULT_ELEMENT_NAME);
+        response.getRequestedSecurityToken().add(requestedToken);
+
+        final Element element = Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        Signer.signObject(signature);
+        return XMLHelper.nodeToString(element);
+    }
+
+    /**
+     * builds a subject confirmed by bearer.
+     *
+     * @return the subject
+     */
+    private Subject buildSubject() {
+        final ConfirmationMethod method = build(ConfirmationMethod.DEFAULT_ELEMENT_NAME);
+        method.setConfirmationMethod(BEARER);
+        final SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.getConfirmationMethods().add(method);
+        final Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setSubjectConfirmation(confirmation);
+        return subject;
+    }
+
+    /**
+     * builds a single valued claim, with an untyped value as ADFS sends it.
+     *
+     * @param name  the claim name
+     * @param value the claim value
+     * @return the attribute
+     */
+    private Attribute buildAttribute(final String name, final String value) {
+        final XSAny attributeValue = (XSAny) this.builderFactory.getBuilder(XSAny.TYPE_NAME)
+                .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME);
+        attributeValue.setTextContent(value);
+        final Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setAttributeName(name);
+        attribute.setAttributeNamespace(CLAIMS_NAMESPACE);
+        attribute.getAttributeValues().add(attributeValue);
+        return attribute;
+    }
+
+    /**
+     * builds an OpenSAML object.
+     *
+     * @param name the element name
+     * @param <T>  the object type
+     * @return the object
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends XMLObject> T build(final QName name) {
+        return (T) this.builderFactory.getBuilder(name).buildObject(name);
+    }
+
+    /**
+     * parses a query string.
+     *
+     * @param query the query string, may be null
+     * @return the parameters
+     * @throws IOException if the query string is not UTF-8
+     */
+    private static Map<String, String> parseQuery(final String query) throws IOException {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        if (query != null) {
+            for (final String pair : query.split("&")) {
+                final int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Answers wsignin1.0 requests with a self posting form.
+     */
+    private final class SignInHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (!"wsignin1.0".equals(parameters.get("wa")) || parameters.get("wtrealm") == null) {
+                    respond(exchange, 400, "wa=wsignin1.0 and wtrealm are required");
+                    return;
+                }
+
+                String user = parameters.get("username");
+                if (user == null) {
+                    user = "user" + userCounter.incrementAndGet();
+                }
+                final String wresult = issueToken(user, parameters.get("wtrealm"));
+                final String reply = parameters.get("wreply") != null ? parameters.get("wreply") : replyUrl;
+
+                final StringBuilder form = new StringBuilder(wresult.length() + 1024);
+                form.append("<html><body onload=\"document.forms[0].submit()\">")
+                    .append("<form method=\"POST\" action=\"").append(StringEscapeUtils.escapeHtml(reply)).append("\">")
+                    .append("<input type=\"hidden\" name=\"wa\" value=\"wsignin1.0\"/>")
+                    .append("<input type=\"hidden\" name=\"wresult\" value=\"")
+                    .append(StringEscapeUtils.escapeHtml(wresult)).append("\"/>");
+                if (parameters.get("wctx") != null) {
+                    form.append("<input type=\"hidden\" name=\"wctx\" value=\"")
+                        .append(StringEscapeUtils.escapeHtml(parameters.get("wctx"))).append("\"/>");
+                }
+                form.append("</form></body></html>");
+                respond(exchange, 200, form.toString());
+            } catch (final Exception ex) {
+                LOGGER.error("Unable to issue a token", ex);
+                respond(exchange, 500, ex.getMessage());
+            }
+        }
+
+        /**
+         * writes a html response.
+         *
+         * @param exchange the exchange
+         * @param status   the status code
+         * @param body     the body
+         * @throws IOException if the response cannot be written
+         */
+        private void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+            final byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * runs the STS on its own.
+     *
+     * @param args the port, then optionally the issuer and the CAS login url
+     * @throws Exception if the STS cannot start
+     */
+    public static void main(final String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+        final String issuer = args.length > 1 ? args[1] : "http://localhost:" + port + "/adfs/services/trust";
+        final String reply = args.length > 2 ? args[2] : "https://localhost:8443/cas/login";
+        new MockSecurityTokenService(issuer, reply).start(port, Runtime.getRuntime().availableProcessors() * 2);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initializes the openSaml library for WS-Federation use.
+ *
+ * <p>By default the full {@link DefaultBootstrap} is used. When the system property
+ * {@value #MINIMAL_BOOTSTRAP_PROPERTY} is set to {@code true} only the object providers needed to
+ * read a WS-Federation RSTR carrying a signed, optionally encrypted, SAML 1.1 assertion are registered,
+ * which skips the SAML 2, metadata, XACML, SOAP and artifact configuration as well as the ESAPI
+ * initialization.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationBootstrap extends DefaultBootstrap {
+    /**
+     * System property that turns on the minimal bootstrap profile.
+     */
+    public static final String MINIMAL_BOOTSTRAP_PROPERTY = "net.unicon.cas.support.wsfederation.minimalBootstrap";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationBootstrap.class);
+
+    /**
+     * the xmltooling configuration files needed for WS-Federation, SAML 1.1 and XML-DSig.
+     */
+    private static final String[] MINIMAL_CONFIGS = {
+        "/default-config.xml",
+        "/schema-config.xml",
+        "/signature-config.xml",
+        "/signature-validation-config.xml",
+        "/encryption-config.xml",
+        "/wsfed11-protocol-config.xml",
+        "/saml1-assertion-config.xml"
+    };
+
+    private static boolean initialized;
+
+    /**
+     * private constructor.
+     */
+    private WsFederationBootstrap() {
+    }
+
+    /**
+     * bootstraps the openSaml library using the profile selected by {@value #MINIMAL_BOOTSTRAP_PROPERTY}.
+     *
+     * @throws ConfigurationException if the library could not be initialized
+     */
+    public static synchronized void bootstrap() throws ConfigurationException {
+        if (Boolean.getBoolean(MINIMAL_BOOTSTRAP_PROPERTY)) {
+            bootstrapMinimal();
+        } else {
+            DefaultBootstrap.bootstrap();
+        }
+    }
+
+    /**
+     * bootstraps only the object providers used by this module.
+     *
+     * @throws ConfigurationException if the library could not be initialized
+     */
+    public static synchronized void bootstrapMinimal() throws ConfigurationException {
+        if (initialized) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        initializeXMLSecurity();
+        initializeXMLTooling(MINIMAL_CONFIGS);
+        initializeGlobalSecurityConfiguration();
+        initializeParserPool();
+        initialized = true;
+
+        LOGGER.debug("bootstrapMinimal: openSaml initialized in {} ms", System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches the signing certificate files of the configured IdPs and reloads a configuration when one of
+ * its files is created or modified, so that certificate rollovers need no restart.
+ *
+ * <p>Changes are collected until the files have been quiet for {@code quietPeriod} milliseconds, so a file written
+ * in several steps is read once, complete. Certificates that are not plain files (e.g. inside a jar) are not
+ * watched.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationCertificateWatcher implements InitializingBean, DisposableBean, Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationCertificateWatcher.class);
+
+    private final Map<Path, Set<WsFederationConfiguration>> watchedFiles =
+            new HashMap<Path, Set<WsFederationConfiguration>>();
+
+    @NotNull
+    private WsFederationConfigurationRegistry configurationRegistry;
+
+    private long quietPeriod = 1000;
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        final Set<Path> directories = new HashSet<Path>();
+        for (final WsFederationConfiguration configuration : this.configurationRegistry.getConfigurations()) {
+            final List<Resource> files = configuration.getSigningCertificateFiles();
+            if (files == null) {
+                continue;
+            }
+
+            for (final Resource resource : files) {
+                final Path file;
+                try {
+                    file = resource.getFile().toPath().toAbsolutePath().normalize();
+                } catch (final IOException ex) {
+                    LOGGER.debug("{} is not a file and will not be watched", resource);
+                    continue;
+                }
+
+                Set<WsFederationConfiguration> configurations = this.watchedFiles.get(file);
+                if (configurations == null) {
+                    configurations = new LinkedHashSet<WsFederationConfiguration>();
+                    this.watchedFiles.put(file, configurations);
+                }
+                configurations.add(configuration);
+
+                if (directories.add(file.getParent())) {
+                    file.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        }
+
+        if (this.watchedFiles.isEmpty()) {
+            LOGGER.info("No signing certificate file to watch");
+            this.watchService.close();
+            return;
+        }
+
+        this.thread = new Thread(this, "wsfed-certificate-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        LOGGER.info("Watching {} signing certificate files", this.watchedFiles.size());
+    }
+
+    @Override
+    public void run() {
+        final Set<WsFederationConfiguration> pending = new LinkedHashSet<WsFederationConfiguration>();
+        long quietUntil = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final WatchKey key;
+                if (pending.isEmpty()) {
+                    key = this.watchService.take();
+                } else {
+                    // only changes of the watched files restart the quiet period, not the other files of the directory
+                    final long remaining = quietUntil - System.nanoTime();
+                    key = remaining > 0 ? this.watchService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                }
+
+                if (key == null) {
+                    // the files have been quiet long enough
+                    reload(pending);
+                    pending.clear();
+                    continue;
+                }
+
+                final Path directory = (Path) key.watchable();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        for (final Set<WsFederationConfiguration> configurations : this.watchedFiles.values()) {
+                            pending.addAll(configurations);
+                        }
+                        changed = true;
+                    } else {
+                        final Path file = directory.resolve((Path) event.context()).toAbsolutePath().normalize();
+                        final Set<WsFederationConfiguration> configurations = this.watchedFiles.get(file);
+                        if (configurations != null) {
+                            LOGGER.debug("{} changed", file);
+                            pending.addAll(configurations);
+                            changed = true;
+                        }
+                    }
+                }
+                if (changed) {
+                    quietUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.quietPeriod);
+                }
+                key.reset();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException ex) {
+            LOGGER.debug("Certificate watcher stopped");
+        }
+    }
+
+    /**
+     * reloads the configurations whose files changed. A configuration failing to reload does not stop the watcher
+     * nor the reload of the others.
+     *
+     * @param configurations the configurations to reload
+     */
+    private void reload(final Set<WsFederationConfiguration> configurations) {
+        for (final WsFederationConfiguration configuration : configurations) {
+            try {
+                configuration.reload();
+            } catch (final RuntimeException ex) {
+                LOGGER.error("reload: " + configuration.getIdentityProviderIdentifier() + " could not be reloaded: "
+                        + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+    }
+
+    /**
+     * sets the configuration to watch when a single IdP is trusted.
+     *
+     * @param configuration a configuration
+     */
+    public void setConfiguration(final WsFederationConfiguration configuration) {
+        this.configurationRegistry = new WsFederationConfigurationRegistry(configuration);
+    }
+
+    /**
+     * sets the configurations to watch when several IdPs are trusted.
+     *
+     * @param configurationRegistry a configuration registry
+     */
+    public void setConfigurationRegistry(final WsFederationConfigurationRegistry configurationRegistry) {
+        this.configurationRegistry = configurationRegistry;
+    }
+
+    /**
+     * sets how long the files must be quiet before they are reloaded.
+     *
+     * @param quietPeriod the quiet period in milliseconds
+     */
+    public void setQuietPeriod(final long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+}
@@ -16,20 +16,48 @@
 
 package net.unicon.cas.support.wsfederation;
 
+import org.opensaml.xml.encryption.Decrypter;
+import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 import javax.validation.constraints.NotNull;
+import java.security.Provider;
+import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class gathers configuration information for the WS Federation Identity Provider.
  *
+ * <p>Every setter publishes a new immutable {@link Snapshot} through an atomic reference. Request threads read the
+ * snapshot once per login, so a login never mixes values from before and after a change. The signing certificates
+ * can be reloaded from their files without a restart, through JMX or a {@link WsFederationCertificateWatcher}.</p>
+ *
  * @author John Gasper
  * @since 3.5.2
  */
+@ManagedResource(description = "WS-Federation identity provider configuration")
 public final class WsFederationConfiguration {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationConfiguration.class);
+
+    /** the number of decrypter changes of every configuration, telling registries to rebuild their decrypters. */
+    private static final AtomicLong DECRYPTER_CHANGES = new AtomicLong();
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+
     @NotNull
     private String identityAttribute;
 
@@ -49,15 +77,44 @@ public final class WsFederationConfiguration {
 
     private List<X509Credential> signingWallet;
 
+    private List<String> signingKeyTypes = Collections.singletonList("RSA");
+
+    private Provider signatureProvider;
+
+    private Resource encryptionPrivateKeyFile;
+
+    private Decrypter decrypter;
+
     private WsFederationAttributeMutator attributeMutator;
 
+    private List<String> emailDomains = new ArrayList<String>();
+
+    private long version;
+
+    /**
+     * creates an empty configuration.
+     */
+    public WsFederationConfiguration() {
+        publish();
+    }
+
+    /**
+     * gets the current snapshot of the configuration. Read it once per login.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        return this.snapshot.get();
+    }
+
     /**
      * gets the identity of the IdP.
      *
      * @return the identity
      */
+    @ManagedAttribute(description = "Attribute holding the principal id")
     public String getIdentityAttribute() {
-        return this.identityAttribute;
+        return this.snapshot.get().getIdentityAttribute();
     }
 
     /**
@@ -65,8 +122,10 @@ public final class WsFederationConfiguration {
      *
      * @param identityAttribute the identity
      */
-    public void setIdentityAttribute(final String identityAttribute) {
+    @ManagedAttribute
+    public synchronized void setIdentityAttribute(final String identityAttribute) {
         this.identityAttribute = identityAttribute;
+        publish();
     }
 
     /**
@@ -74,8 +133,9 @@ public final class WsFederationConfiguration {
      *
      * @return the identifier
      */
+    @ManagedAttribute(description = "Identifier of the IdP")
     public String getIdentityProviderIdentifier() {
-        return identityProviderIdentifier;
+        return this.snapshot.get().getIdentityProviderIdentifier();
     }
 
     /**
@@ -83,8 +143,9 @@ public final class WsFederationConfiguration {
      *
      * @param identityProviderIdentifier the identifier.
      */
-    public void setIdentityProviderIdentifier(final String identityProviderIdentifier) {
+    public synchronized void setIdentityProviderIdentifier(final String identityProviderIdentifier) {
         this.identityProviderIdentifier = identityProviderIdentifier;
+        publish();
     }
 
     /**
@@ -93,7 +154,7 @@ public final class WsFederationConfiguration {
      * @return the url
      */
     public String getIdentityProviderUrl() {
-        return this.identityProviderUrl;
+        return this.snapshot.get().getIdentityProviderUrl();
     }
 
     /**
@@ -101,8 +162,9 @@ public final class WsFederationConfiguration {
      *
      * @param identityProviderUrl the url
      */
-    public void setIdentityProviderUrl(final String identityProviderUrl) {
+    public synchronized void setIdentityProviderUrl(final String identityProviderUrl) {
         this.identityProviderUrl = identityProviderUrl;
+        publish();
     }
 
     /**
@@ -111,7 +173,7 @@ public final class WsFederationConfiguration {
      * @return the identifier
      */
     public String getRelyingPartyIdentifier() {
-        return this.relyingPartyIdentifier;
+        return this.snapshot.get().getRelyingPartyIdentifier();
     }
 
     /**
@@ -119,8 +181,9 @@ public final class WsFederationConfiguration {
      *
      * @param relyingPartyIdentifier the identifier
      */
-    public void setRelyingPartyIdentifier(final String relyingPartyIdentifier) {
+    public synchronized void setRelyingPartyIdentifier(final String relyingPartyIdentifier) {
         this.relyingPartyIdentifier = relyingPartyIdentifier;
+        publish();
     }
 
     /**
@@ -129,7 +192,7 @@ public final class WsFederationConfiguration {
      * @return X509credentials of the signing certs
      */
     public List<X509Credential> getSigningCertificates() {
-        return this.signingWallet;
+        return this.snapshot.get().getSigningCertificates();
     }
 
     /**
@@ -138,7 +201,7 @@ public final class WsFederationConfiguration {
      * @return the list of files
      */
     public List<Resource> getSigningCertificateFiles() {
-        return this.signingCertificateFiles;
+        return this.snapshot.get().getSigningCertificateFiles();
     }
 
     /**
@@ -147,15 +210,130 @@ public final class WsFederationConfiguration {
      * @param signingCertificateFiles a list of certificate files to read in.
      */
     public void setSigningCertificateFiles(final List<Resource> signingCertificateFiles) {
-        this.signingCertificateFiles = signingCertificateFiles;
+        final List<X509Credential> signingCerts = loadSigningCertificates(signingCertificateFiles,
+                this.snapshot.get().getSigningKeyTypes());
+
+        synchronized (this) {
+            this.signingCertificateFiles = signingCertificateFiles;
+            this.signingWallet = signingCerts;
+            publish();
+        }
+    }
+
+    /**
+     * gets the key algorithms accepted for the signing certificates.
+     *
+     * @return the key algorithms
+     */
+    public List<String> getSigningKeyTypes() {
+        return this.snapshot.get().getSigningKeyTypes();
+    }
+
+    /**
+     * sets the key algorithms accepted for the signing certificates, RSA by default. ADFS signs with RSA keys, and
+     * with EC keys on recent versions. Certificates already set are read again.
+     *
+     * @param signingKeyTypes the key algorithms, such as RSA or EC
+     */
+    public synchronized void setSigningKeyTypes(final List<String> signingKeyTypes) {
+        this.signingKeyTypes = new ArrayList<String>(signingKeyTypes);
+        if (this.signingCertificateFiles != null) {
+            this.signingWallet = loadSigningCertificates(this.signingCertificateFiles, this.signingKeyTypes);
+        }
+        publish();
+    }
+
+    /**
+     * gets the name of the JCA provider verifying the signatures.
+     *
+     * @return the provider name, or null for the one OpenSAML picks
+     */
+    @ManagedAttribute(description = "JCA provider verifying the signatures")
+    public String getSignatureProvider() {
+        final Provider provider = this.snapshot.get().getSignatureProvider();
+        return provider == null ? null : provider.getName();
+    }
+
+    /**
+     * sets the JCA provider verifying the signatures, such as SunRsaSign or SunEC. It must be installed in the JVM.
+     * The digests of the references are still computed by the provider OpenSAML picks.
+     *
+     * @param signatureProvider the provider name, or null for the one OpenSAML picks
+     */
+    public synchronized void setSignatureProvider(final String signatureProvider) {
+        final Provider provider = signatureProvider == null ? null : Security.getProvider(signatureProvider);
+        if (signatureProvider != null && provider == null) {
+            throw new IllegalArgumentException("Unknown JCA provider " + signatureProvider);
+        }
+        this.signatureProvider = provider;
+        publish();
+    }
 
-        final List<X509Credential> signingCerts = new ArrayList<X509Credential>();
+    /**
+     * gets the private key file tokens encrypted to CAS are decrypted with.
+     *
+     * @return the private key file
+     */
+    public Resource getEncryptionPrivateKeyFile() {
+        return this.snapshot.get().getEncryptionPrivateKeyFile();
+    }
 
-        for (final Resource file : signingCertificateFiles) {
-            signingCerts.add(WsFederationUtils.getSigningCredential(file));
+    /**
+     * sets the private key file tokens encrypted to CAS are decrypted with. The key is read and the decrypter built
+     * once, here, and reused by every login.
+     *
+     * @param encryptionPrivateKeyFile the PKCS#8 private key file, PEM or DER encoded
+     */
+    public void setEncryptionPrivateKeyFile(final Resource encryptionPrivateKeyFile) {
+        final Credential credential = WsFederationUtils.getDecryptionCredential(encryptionPrivateKeyFile);
+        if (credential == null) {
+            throw new IllegalArgumentException("Unable to read the decryption key " + encryptionPrivateKeyFile);
         }
+        final Decrypter newDecrypter = WsFederationUtils.createDecrypter(credential);
 
-        this.signingWallet = signingCerts;
+        synchronized (this) {
+            this.encryptionPrivateKeyFile = encryptionPrivateKeyFile;
+            this.decrypter = newDecrypter;
+            publish();
+        }
+        DECRYPTER_CHANGES.incrementAndGet();
+    }
+
+    /**
+     * reloads the signing certificates from their files and swaps them in. The current certificates are kept if
+     * any file cannot be read.
+     *
+     * @return true if the certificates were reloaded
+     */
+    @ManagedOperation(description = "Reloads the signing certificates from their files")
+    public boolean reload() {
+        final List<Resource> files;
+        synchronized (this) {
+            files = this.signingCertificateFiles;
+        }
+        if (files == null) {
+            return false;
+        }
+
+        final List<X509Credential> signingCerts = loadSigningCertificates(files,
+                this.snapshot.get().getSigningKeyTypes());
+        if (signingCerts.contains(null)) {
+            LOGGER.error("reload: a signing certificate of {} could not be read; keeping the current certificates",
+                    this.snapshot.get().getIdentityProviderIdentifier());
+            return false;
+        }
+
+        synchronized (this) {
+            if (files != this.signingCertificateFiles) {
+                LOGGER.debug("reload: the certificate files changed while reloading; skipping");
+                return false;
+            }
+            this.signingWallet = signingCerts;
+            publish();
+        }
+        LOGGER.info("reload: reloaded {} signing certificates of {}", signingCerts.size(),
+                this.snapshot.get().getIdentityProviderIdentifier());
+        return true;
     }
 
     /**
@@ -163,8 +341,9 @@ public final class WsFederationConfiguration {
      *
      * @return the tolerance in milliseconds
      */
+    @ManagedAttribute(description = "Accepted clock drift in milliseconds")
     public int getTolerance() {
-        return tolerance;
+        return this.snapshot.get().getTolerance();
     }
 
     /**
@@ -172,8 +351,10 @@ public final class WsFederationConfiguration {
      *
      * @param tolerance the tolerance in milliseconds
      */
-    public void setTolerance(final int tolerance) {
+    @ManagedAttribute
+    public synchronized void setTolerance(final int tolerance) {
         this.tolerance = tolerance;
+        publish();
     }
 
     /**
@@ -182,7 +363,7 @@ public final class WsFederationConfiguration {
      * @return an attributeMutator
      */
     public WsFederationAttributeMutator getAttributeMutator() {
-        return attributeMutator;
+        return this.snapshot.get().getAttributeMutator();
     }
 
     /**
@@ -190,8 +371,301 @@ public final class WsFederationConfiguration {
      *
      * @param attributeMutator an attributeMutator
      */
-    public void setAttributeMutator(final WsFederationAttributeMutator attributeMutator) {
+    public synchronized void setAttributeMutator(final WsFederationAttributeMutator attributeMutator) {
         this.attributeMutator = attributeMutator;
+        publish();
+    }
+
+    /**
+     * gets the email domains whose users are sent to this IdP.
+     *
+     * @return the email domains
+     */
+    public List<String> getEmailDomains() {
+        return this.snapshot.get().getEmailDomains();
     }
 
+    /**
+     * sets the email domains whose users are sent to this IdP. Sub-domains of a listed domain match as well.
+     *
+     * @param emailDomains the email domains
+     */
+    public synchronized void setEmailDomains(final List<String> emailDomains) {
+        this.emailDomains = emailDomains;
+        publish();
+    }
+
+    /**
+     * gets the number of changes published since the configuration was created.
+     *
+     * @return the version of the current snapshot
+     */
+    @ManagedAttribute(description = "Number of changes published since startup")
+    public long getVersion() {
+        return this.snapshot.get().getVersion();
+    }
+
+    /**
+     * gets the number of decrypter changes of every configuration since startup.
+     *
+     * @return the number of decrypter changes
+     */
+    static long getDecrypterChanges() {
+        return DECRYPTER_CHANGES.get();
+    }
+
+    /**
+     * publishes a snapshot of the current values. Callers hold the lock of this configuration.
+     */
+    private void publish() {
+        this.snapshot.set(new Snapshot(this, ++this.version));
+    }
+
+    /**
+     * reads the signing certificate files.
+     *
+     * @param files    the certificate files
+     * @param keyTypes the accepted key algorithms
+     * @return the credentials, holding null for the files that could not be read
+     */
+    private static List<X509Credential> loadSigningCertificates(final List<Resource> files,
+                                                                final List<String> keyTypes) {
+        final List<X509Credential> signingCerts = new ArrayList<X509Credential>(files.size());
+        for (final Resource file : files) {
+            signingCerts.add(WsFederationUtils.getSigningCredential(file, keyTypes));
+        }
+        return signingCerts;
+    }
+
+    /**
+     * An immutable view of the configuration at one point in time.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String identityAttribute;
+        private final String identityProviderIdentifier;
+        private final String identityProviderUrl;
+        private final String relyingPartyIdentifier;
+        private final int tolerance;
+        private final List<Resource> signingCertificateFiles;
+        private final List<X509Credential> signingCertificates;
+        private final List<String> signingKeyTypes;
+        private final Provider signatureProvider;
+        private final Resource encryptionPrivateKeyFile;
+        private final Decrypter decrypter;
+        private final WsFederationAttributeMutator attributeMutator;
+        private final List<String> emailDomains;
+
+        private final ConcurrentMap<String, String> authorizationUrls = new ConcurrentHashMap<String, String>();
+
+        private volatile AudienceSet audiences;
+
+        /**
+         * copies the values of a configuration.
+         *
+         * @param configuration the configuration
+         * @param version       the version of the snapshot
+         */
+        private Snapshot(final WsFederationConfiguration configuration, final long version) {
+            this.version = version;
+            this.identityAttribute = configuration.identityAttribute;
+            this.identityProviderIdentifier = configuration.identityProviderIdentifier;
+            this.identityProviderUrl = configuration.identityProviderUrl;
+            this.relyingPartyIdentifier = configuration.relyingPartyIdentifier;
+            this.tolerance = configuration.tolerance;
+            this.signingCertificateFiles = configuration.signingCertificateFiles == null ? null
+                    : Collections.unmodifiableList(new ArrayList<Resource>(configuration.signingCertificateFiles));
+            this.signingCertificates = configuration.signingWallet == null ? null
+                    : Collections.unmodifiableList(configuration.signingWallet);
+            this.signingKeyTypes = Collections.unmodifiableList(new ArrayList<String>(configuration.signingKeyTypes));
+            this.signatureProvider = configuration.signatureProvider;
+            this.encryptionPrivateKeyFile = configuration.encryptionPrivateKeyFile;
+            this.decrypter = configuration.decrypter;
+            this.attributeMutator = configuration.attributeMutator;
+            this.emailDomains = configuration.emailDomains == null ? null
+                    : Collections.unmodifiableList(new ArrayList<String>(configuration.emailDomains));
+        }
+
+        /**
+         * gets the version of the configuration this snapshot was taken from.
+         *
+         * @return the version
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * gets the attribute identifying the user.
+         *
+         * @return the identity attribute
+         */
+        public String getIdentityAttribute() {
+            return this.identityAttribute;
+        }
+
+        /**
+         * gets the identity provider identifier.
+         *
+         * @return the identifier
+         */
+        public String getIdentityProviderIdentifier() {
+            return this.identityProviderIdentifier;
+        }
+
+        /**
+         * gets the identity provider url.
+         *
+         * @return the url
+         */
+        public String getIdentityProviderUrl() {
+            return this.identityProviderUrl;
+        }
+
+        /**
+         * gets the relying party identifier.
+         *
+         * @return the identifier
+         */
+        public String getRelyingPartyIdentifier() {
+            return this.relyingPartyIdentifier;
+        }
+
+        /**
+         * gets the tolerance.
+         *
+         * @return the tolerance in milliseconds
+         */
+        public int getTolerance() {
+            return this.tolerance;
+        }
+
+        /**
+         * gets the list of signing certificate files.
+         *
+         * @return the list of files
+         */
+        public List<Resource> getSigningCertificateFiles() {
+            return this.signingCertificateFiles;
+        }
+
+        /**
+         * gets the signing certificates.
+         *
+         * @return X509credentials of the signing certs
+         */
+        public List<X509Credential> getSigningCertificates() {
+            return this.signingCertificates;
+        }
+
+        /**
+         * gets the key algorithms accepted for the signing certificates.
+         *
+         * @return the key algorithms
+         */
+        public List<String> getSigningKeyTypes() {
+            return this.signingKeyTypes;
+        }
+
+        /**
+         * gets the JCA provider verifying the signatures.
+         *
+         * @return the provider, or null for the one OpenSAML picks
+         */
+        public Provider getSignatureProvider() {
+            return this.signatureProvider;
+        }
+
+        /**
+         * gets the private key file tokens encrypted to CAS are decrypted with.
+         *
+         * @return the private key file
+         */
+        public Resource getEncryptionPrivateKeyFile() {
+            return this.encryptionPrivateKeyFile;
+        }
+
+        /**
+         * gets the decrypter built from the encryption private key.
+         *
+         * @return the decrypter, or null if no private key is configured
+         */
+        public Decrypter getDecrypter() {
+            return this.decrypter;
+        }
+
+        /**
+         * gets the attributeMutator.
+         *
+         * @return an attributeMutator
+         */
+        public WsFederationAttributeMutator getAttributeMutator() {
+            return this.attributeMutator;
+        }
+
+        /**
+         * gets the email domains whose users are sent to this IdP.
+         *
+         * @return the email domains
+         */
+        public List<String> getEmailDomains() {
+            return this.emailDomains;
+        }
+
+        /**
+         * gets the url redirecting to the IdP for a realm, built once per snapshot and realm.
+         *
+         * @param realm the realm presented to the IdP
+         * @return the url
+         */
+        public String getAuthorizationUrl(final String realm) {
+            String url = this.authorizationUrls.get(realm);
+            if (url == null) {
+                url = this.identityProviderUrl + "?wa=wsignin1.0&wtrealm=" + realm;
+                this.authorizationUrls.putIfAbsent(realm, url);
+            }
+            return url;
+        }
+
+        /**
+         * gets the normalized audiences accepted from the IdP: the relying party identifier and the given realms.
+         * The result is computed once per snapshot as long as the same realm set is passed.
+         *
+         * @param realms the normalized realms presented to the IdP on behalf of services
+         * @return the audiences
+         */
+        public Set<String> getAudiences(final Set<String> realms) {
+            final AudienceSet cached = this.audiences;
+            if (cached != null && cached.realms == realms) {
+                return cached.audiences;
+            }
+
+            final Set<String> accepted = new HashSet<String>(realms);
+            if (this.relyingPartyIdentifier != null) {
+                accepted.add(WsFederationRealmRegistry.normalize(this.relyingPartyIdentifier));
+            }
+            final AudienceSet computed = new AudienceSet(realms, Collections.unmodifiableSet(accepted));
+            this.audiences = computed;
+            return computed.audiences;
+        }
+    }
+
+    /**
+     * The audiences computed from a realm set.
+     */
+    private static final class AudienceSet {
+        private final Set<String> realms;
+        private final Set<String> audiences;
+
+        /**
+         * creates the audience set.
+         *
+         * @param realms    the realm set it was computed from
+         * @param audiences the audiences
+         */
+        AudienceSet(final Set<String> realms, final Set<String> audiences) {
+            this.realms = realms;
+            this.audiences = audiences;
+        }
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.xml.encryption.Decrypter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class holds the configurations of every WS Federation Identity Provider trusted by CAS and routes
+ * requests to the right one.
+ *
+ * <p>Callbacks are routed by the issuer of the assertion. Redirects are routed by the {@code whr} home realm
+ * parameter, which is matched against the identity provider identifier, or by the domain of the user's email
+ * address, which is matched against the configured email domains of each IdP and their parent domains.
+ * All lookups are hash lookups, so their cost does not depend on the number of configured IdPs.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationConfigurationRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationConfigurationRegistry.class);
+
+    @NotNull
+    private List<WsFederationConfiguration> configurations = Collections.emptyList();
+
+    private WsFederationConfiguration defaultConfiguration;
+
+    private Map<String, WsFederationConfiguration> issuerIndex = Collections.emptyMap();
+
+    private Map<String, WsFederationConfiguration> domainIndex = Collections.emptyMap();
+
+    private volatile Decrypters decrypters;
+
+    /**
+     * creates an empty registry.
+     */
+    public WsFederationConfigurationRegistry() {
+    }
+
+    /**
+     * creates a registry holding a single configuration, which is also the default.
+     *
+     * @param configuration the configuration
+     */
+    public WsFederationConfigurationRegistry(final WsFederationConfiguration configuration) {
+        setConfigurations(Collections.singletonList(configuration));
+    }
+
+    /**
+     * gets the decrypters of the configured IdPs. The issuer of an encrypted token is only known once it is
+     * decrypted, so every decrypter is tried. The list is built again only after the configurations or the
+     * decryption key of a configuration change.
+     *
+     * @return the decrypters, without duplicates
+     */
+    public List<Decrypter> getDecrypters() {
+        final List<WsFederationConfiguration> current = this.configurations;
+        final long changes = WsFederationConfiguration.getDecrypterChanges();
+        Decrypters built = this.decrypters;
+        if (built == null || built.configurations != current || built.changes != changes) {
+            final LinkedHashSet<Decrypter> unique = new LinkedHashSet<Decrypter>();
+            for (final WsFederationConfiguration configuration : current) {
+                final Decrypter decrypter = configuration.getSnapshot().getDecrypter();
+                if (decrypter != null) {
+                    unique.add(decrypter);
+                }
+            }
+            built = new Decrypters(current, changes, unique.isEmpty() ? Collections.<Decrypter>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<Decrypter>(unique)));
+            this.decrypters = built;
+        }
+        return built.list;
+    }
+
+    /**
+     * gets the configuration of the IdP that issued a token.
+     *
+     * @param issuer the issuer of the token
+     * @return the configuration, or null if the issuer is unknown
+     */
+    public WsFederationConfiguration getConfigurationForIssuer(final String issuer) {
+        if (issuer == null) {
+            return null;
+        }
+        return this.issuerIndex.get(normalize(issuer));
+    }
+
+    /**
+     * gets the configuration of the IdP a user should be redirected to.
+     *
+     * @param homeRealm the home realm (whr) requested, may be null
+     * @param userName  the email address or user principal name of the user, may be null
+     * @return the matching configuration, or the default configuration if none matched
+     */
+    public WsFederationConfiguration getConfigurationForRedirect(final String homeRealm, final String userName) {
+        if (StringUtils.isNotBlank(homeRealm)) {
+            final WsFederationConfiguration configuration = this.issuerIndex.get(normalize(homeRealm));
+            if (configuration != null) {
+                LOGGER.debug("getConfigurationForRedirect: matched home realm {}", homeRealm);
+                return configuration;
+            }
+        }
+
+        if (StringUtils.isNotBlank(userName) && userName.indexOf('@') >= 0) {
+            String domain = normalize(userName.substring(userName.lastIndexOf('@') + 1));
+            while (StringUtils.isNotEmpty(domain)) {
+                final WsFederationConfiguration configuration = this.domainIndex.get(domain);
+                if (configuration != null) {
+                    LOGGER.debug("getConfigurationForRedirect: matched email domain {}", domain);
+                    return configuration;
+                }
+
+                final int dot = domain.indexOf('.');
+                domain = dot < 0 ? null : domain.substring(dot + 1);
+            }
+        }
+
+        return this.defaultConfiguration;
+    }
+
+    /**
+     * gets the configurations.
+     *
+     * @return the configurations
+     */
+    public List<WsFederationConfiguration> getConfigurations() {
+        return this.configurations;
+    }
+
+    /**
+     * sets the configurations and builds the issuer and email domain indexes.
+     *
+     * @param configurations the configurations
+     */
+    public void setConfigurations(final List<WsFederationConfiguration> configurations) {
+        final Map<String, WsFederationConfiguration> issuers = new HashMap<String, WsFederationConfiguration>();
+        final Map<String, WsFederationConfiguration> domains = new HashMap<String, WsFederationConfiguration>();
+
+        for (final WsFederationConfiguration configuration : configurations) {
+            final String issuer = normalize(configuration.getIdentityProviderIdentifier());
+            if (issuers.put(issuer, configuration) != null) {
+                throw new IllegalArgumentException("Duplicate identity provider identifier: " + issuer);
+            }
+
+            if (configuration.getEmailDomains() != null) {
+                for (final String domain : configuration.getEmailDomains()) {
+                    if (domains.put(normalize(domain), configuration) != null) {
+                        throw new IllegalArgumentException("Email domain claimed by more than one IdP: " + domain);
+                    }
+                }
+            }
+        }
+
+        this.configurations = Collections.unmodifiableList(configurations);
+        this.issuerIndex = issuers;
+        this.domainIndex = domains;
+        if (this.defaultConfiguration == null && !configurations.isEmpty()) {
+            this.defaultConfiguration = configurations.get(0);
+        }
+        LOGGER.debug("setConfigurations: indexed {} IdPs and {} email domains", issuers.size(), domains.size());
+    }
+
+    /**
+     * gets the configuration used when no home realm or email domain matched.
+     *
+     * @return the default configuration
+     */
+    public WsFederationConfiguration getDefaultConfiguration() {
+        return this.defaultConfiguration;
+    }
+
+    /**
+     * sets the configuration used when no home realm or email domain matched. Defaults to the first
+     * configuration.
+     *
+     * @param defaultConfiguration the default configuration
+     */
+    public void setDefaultConfiguration(final WsFederationConfiguration defaultConfiguration) {
+        this.defaultConfiguration = defaultConfiguration;
+    }
+
+    /**
+     * normalizes a key so that lookups are case insensitive.
+     *
+     * @param key the key
+     * @return the normalized key
+     */
+    private static String normalize(final String key) {
+        return key.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The decrypters of the configurations, and the changes they were built from.
+     */
+    private static final class Decrypters {
+        private final List<WsFederationConfiguration> configurations;
+        private final long changes;
+        private final List<Decrypter> list;
+
+        /**
+         * holds a built list of decrypters.
+         *
+         * @param configurations the configurations the list was built from
+         * @param changes        the number of decrypter changes when the list was built
+         * @param list           the decrypters
+         */
+        Decrypters(final List<WsFederationConfiguration> configurations, final long changes,
+                   final List<Decrypter> list) {
+            this.configurations = configurations;
+            this.changes = changes;
+            this.list = list;
+        }
+    }
+}
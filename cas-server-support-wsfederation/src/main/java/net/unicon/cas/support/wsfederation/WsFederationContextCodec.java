@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.validation.constraints.NotNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class packs the login flow state into a compact, tamper-evident value that is sent to the IdP in the
+ * {@code wctx} parameter and echoed back on the callback, so the redirect leg needs no server side state.
+ *
+ * <p>The value is the base64url encoding of a version byte, the issue time, the state entries and a truncated
+ * HMAC-SHA256 over all of them. When an encryption key is set, the entries are encrypted with AES/CBC before the
+ * HMAC is computed. Values older than {@code maxAge} are rejected, as are values issued more than {@code tolerance}
+ * in the future, which allows for the clock skew between the nodes of a cluster.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationContextCodec {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationContextCodec.class);
+
+    private static final byte VERSION_PLAIN = 1;
+    private static final byte VERSION_ENCRYPTED = 2;
+    private static final int HEADER_LENGTH = 9;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SecureRandom random = new SecureRandom();
+
+    @NotNull
+    private SecretKeySpec signingKey;
+
+    private SecretKeySpec encryptionKey;
+
+    private long maxAge = 3600000;
+
+    private long tolerance = 10000;
+
+    /**
+     * encodes the state.
+     *
+     * @param state the state entries
+     * @return the wctx value
+     */
+    public String encode(final Map<String, String> state) {
+        try {
+            final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(entries);
+            out.writeByte(state.size());
+            for (final Map.Entry<String, String> entry : state.entrySet()) {
+                WsFederationStrings.write(out, entry.getKey());
+                WsFederationStrings.write(out, entry.getValue());
+            }
+            out.flush();
+
+            byte[] body = entries.toByteArray();
+            if (this.encryptionKey != null) {
+                final byte[] iv = new byte[IV_LENGTH];
+                this.random.nextBytes(iv);
+                final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+                body = concat(iv, cipher.doFinal(body));
+            }
+
+            final ByteArrayOutputStream message = new ByteArrayOutputStream(HEADER_LENGTH + body.length + MAC_LENGTH);
+            final DataOutputStream header = new DataOutputStream(message);
+            header.writeByte(this.encryptionKey != null ? VERSION_ENCRYPTED : VERSION_PLAIN);
+            header.writeLong(System.currentTimeMillis());
+            header.write(body);
+            header.flush();
+
+            final byte[] signed = message.toByteArray();
+            return Base64.encodeBase64URLSafeString(concat(signed, mac(signed)));
+        } catch (final IOException | GeneralSecurityException ex) {
+            throw new IllegalStateException("Unable to encode the WS-Federation context", ex);
+        }
+    }
+
+    /**
+     * decodes and verifies a wctx value.
+     *
+     * @param wctx the wctx value returned by the IdP
+     * @return the state entries, or null if the value is missing, tampered with or expired
+     */
+    public Map<String, String> decode(final String wctx) {
+        if (wctx == null) {
+            return null;
+        }
+
+        try {
+            final byte[] value = Base64.decodeBase64(wctx);
+            if (value.length < HEADER_LENGTH + MAC_LENGTH) {
+                LOGGER.warn("decode: context is too short");
+                return null;
+            }
+
+            final byte[] signed = Arrays.copyOfRange(value, 0, value.length - MAC_LENGTH);
+            final byte[] mac = Arrays.copyOfRange(value, value.length - MAC_LENGTH, value.length);
+            if (!MessageDigest.isEqual(mac, mac(signed))) {
+                LOGGER.warn("decode: context signature is NOT valid");
+                return null;
+            }
+
+            final DataInputStream header = new DataInputStream(new ByteArrayInputStream(signed));
+            final byte version = header.readByte();
+            final long issued = header.readLong();
+            final long age = System.currentTimeMillis() - issued;
+            if (age > this.maxAge || age < -this.tolerance) {
+                LOGGER.warn("decode: context is expired ({} ms old)", age);
+                return null;
+            }
+
+            byte[] body = Arrays.copyOfRange(signed, HEADER_LENGTH, signed.length);
+            if (version == VERSION_ENCRYPTED) {
+                if (this.encryptionKey == null) {
+                    LOGGER.warn("decode: context is encrypted but no encryption key is set");
+                    return null;
+                }
+                final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(body, 0, IV_LENGTH));
+                body = cipher.doFinal(body, IV_LENGTH, body.length - IV_LENGTH);
+            } else if (version != VERSION_PLAIN) {
+                LOGGER.warn("decode: unknown context version {}", version);
+                return null;
+            }
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            final int size = in.readUnsignedByte();
+            final Map<String, String> state = new LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                state.put(WsFederationStrings.read(in), WsFederationStrings.read(in));
+            }
+            return state;
+        } catch (final IOException | GeneralSecurityException | IllegalArgumentException ex) {
+            LOGGER.warn("decode: unable to read the context: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * sets the secret used to sign the context.
+     *
+     * @param signingKey the secret, at least 32 characters long
+     */
+    public void setSigningKey(final String signingKey) {
+        if (signingKey.length() < 32) {
+            throw new IllegalArgumentException("The context signing key must be at least 32 characters long");
+        }
+        this.signingKey = new SecretKeySpec(signingKey.getBytes(UTF8), MAC_ALGORITHM);
+    }
+
+    /**
+     * sets the AES key used to encrypt the context. When not set, the context is only signed.
+     *
+     * @param encryptionKey the base64 encoded 128, 192 or 256 bit AES key
+     */
+    public void setEncryptionKey(final String encryptionKey) {
+        this.encryptionKey = new SecretKeySpec(Base64.decodeBase64(encryptionKey), "AES");
+    }
+
+    /**
+     * sets how long a context stays valid.
+     *
+     * @param maxAge the maximum age in milliseconds
+     */
+    public void setMaxAge(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * sets how far in the future a context may be issued, for the clock skew between the nodes of a cluster.
+     *
+     * @param tolerance the tolerance in milliseconds
+     */
+    public void setTolerance(final long tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * computes the truncated HMAC of a message.
+     *
+     * @param message the message
+     * @return the truncated HMAC
+     * @throws GeneralSecurityException if HmacSHA256 is not available
+     */
+    private byte[] mac(final byte[] message) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(this.signingKey);
+        return Arrays.copyOf(mac.doFinal(message), MAC_LENGTH);
+    }
+
+    /**
+     * concatenates two byte arrays.
+     *
+     * @param first  the first array
+     * @param second the second array
+     * @return the concatenation
+     */
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.jasig.cas.authentication.principal.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class maps CAS services to the relying party realm (wtrealm) presented to the IdP.
+ *
+ * <p>Services are matched by the host name of their URL through a lookup table built when the mappings are set.
+ * Services that do not match use the default realm, or the relying party identifier of the IdP when no default
+ * realm is set.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationRealmRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationRealmRegistry.class);
+
+    private static final String SCHEME_SEPARATOR = "://";
+
+    private Map<String, String> realmsByHost = Collections.emptyMap();
+
+    private Set<String> audiences = Collections.emptySet();
+
+    private String defaultRealm;
+
+    /**
+     * resolves the realm to present for a service.
+     *
+     * @param service       the service the user is logging in to, may be null
+     * @param fallbackRealm the realm to use when neither the service nor the default realm applies
+     * @return the realm
+     */
+    public String resolveRealm(final Service service, final String fallbackRealm) {
+        if (service != null) {
+            final String host = extractHost(service.getId());
+            if (host != null) {
+                final String realm = this.realmsByHost.get(host);
+                if (realm != null) {
+                    LOGGER.debug("resolveRealm: {} -> {}", host, realm);
+                    return realm;
+                }
+            }
+        }
+        return this.defaultRealm != null ? this.defaultRealm : fallbackRealm;
+    }
+
+    /**
+     * gets the normalized (lower case) set of every realm known to this registry.
+     *
+     * @return the audiences
+     */
+    public Set<String> getAudiences() {
+        return this.audiences;
+    }
+
+    /**
+     * gets every realm known to this registry, as configured.
+     *
+     * @return the realms
+     */
+    public Set<String> getRealms() {
+        final Set<String> realms = new HashSet<String>(this.realmsByHost.values());
+        if (this.defaultRealm != null) {
+            realms.add(this.defaultRealm);
+        }
+        return realms;
+    }
+
+    /**
+     * sets the realm of the services of each host.
+     *
+     * @param serviceRealms a map of service host names to realms
+     */
+    public void setServiceRealms(final Map<String, String> serviceRealms) {
+        final Map<String, String> realms = new HashMap<String, String>();
+        for (final Map.Entry<String, String> entry : serviceRealms.entrySet()) {
+            realms.put(normalize(entry.getKey()), entry.getValue());
+        }
+        this.realmsByHost = realms;
+        buildAudiences();
+    }
+
+    /**
+     * gets the default realm.
+     *
+     * @return the default realm
+     */
+    public String getDefaultRealm() {
+        return this.defaultRealm;
+    }
+
+    /**
+     * sets the realm presented for services that have no specific realm.
+     *
+     * @param defaultRealm the default realm
+     */
+    public void setDefaultRealm(final String defaultRealm) {
+        this.defaultRealm = defaultRealm;
+        buildAudiences();
+    }
+
+    /**
+     * normalizes an identifier so that comparisons are case insensitive.
+     *
+     * @param value the identifier
+     * @return the normalized identifier
+     */
+    public static String normalize(final String value) {
+        return value.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * rebuilds the normalized audience set.
+     */
+    private void buildAudiences() {
+        final Set<String> normalized = new HashSet<String>();
+        for (final String realm : getRealms()) {
+            normalized.add(normalize(realm));
+        }
+        this.audiences = Collections.unmodifiableSet(normalized);
+    }
+
+    /**
+     * extracts the lower case host name of a service url.
+     *
+     * @param serviceId the service url
+     * @return the host, or null if the url has no host
+     */
+    private static String extractHost(final String serviceId) {
+        if (serviceId == null) {
+            return null;
+        }
+
+        final int start = serviceId.indexOf(SCHEME_SEPARATOR);
+        if (start < 0) {
+            return null;
+        }
+
+        int end = start + SCHEME_SEPARATOR.length();
+        while (end < serviceId.length() && "/:?#".indexOf(serviceId.charAt(end)) < 0) {
+            end++;
+        }
+
+        String host = serviceId.substring(start + SCHEME_SEPARATOR.length(), end);
+        final int userInfo = host.lastIndexOf('@');
+        if (userInfo >= 0) {
+            host = host.substring(userInfo + 1);
+        }
+        return host.isEmpty() ? null : host.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class measures the round trip of the browser through the IdP, to tell the login time spent at the IdP from
+ * the time spent in CAS.
+ *
+ * <p>The redirect leg stamps a correlation id and its start time in the signed wctx parameter. On the callback, the
+ * time since the redirect (the IdP dwell time) and the time between the IssueInstant of the assertion and its
+ * arrival are recorded in histograms. Redirects that do not come back within {@code abandonTimeout} are counted as
+ * abandoned. Callbacks landing on another node of a cluster are counted as unmatched on that node, and as
+ * abandoned on the node that sent the redirect. Unmatched callbacks, replayed ones included, are not recorded in
+ * the dwell time histogram.</p>
+ *
+ * <p>Redirects are also queued in the order they are sent, so that finding the abandoned ones only looks at the
+ * head of the queue. Each redirect is queued and dequeued once, whatever the number of pending redirects.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@ManagedResource(description = "WS-Federation IdP round trip")
+public final class WsFederationRoundTripMonitor {
+    /** the name of the correlation id entry of the login state. */
+    public static final String CORRELATION_ID = "cid";
+
+    /** the name of the start time entry of the login state. */
+    public static final String START_TIME = "cts";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationRoundTripMonitor.class);
+
+    private static final int RADIX = 36;
+
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    /** the redirects in the order they were sent, returned ones included until they reach the head. */
+    private final Queue<Redirect> sent = new ConcurrentLinkedQueue<Redirect>();
+    private final AtomicInteger sentSize = new AtomicInteger();
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    private final Histogram dwellTime = new Histogram();
+    private final Histogram issueLag = new Histogram();
+
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    private long abandonTimeout = 600000;
+
+    private int maxPending = 100000;
+
+    /**
+     * records a redirect to the IdP and stamps it in the login state.
+     *
+     * @param state the login state packed in the wctx parameter
+     */
+    public void redirected(final Map<String, String> state) {
+        final long now = System.currentTimeMillis();
+        final String correlationId = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, RADIX);
+        state.put(CORRELATION_ID, correlationId);
+        state.put(START_TIME, Long.toString(now, RADIX));
+
+        this.redirects.incrementAndGet();
+        this.pending.put(correlationId, now);
+        this.sent.offer(new Redirect(correlationId, now));
+        this.sentSize.incrementAndGet();
+
+        // another thread sweeping is enough
+        if (this.sweepLock.tryLock()) {
+            try {
+                sweep(now);
+            } finally {
+                this.sweepLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * records the return of a browser from the IdP.
+     *
+     * @param state the login state unpacked from the wctx parameter
+     */
+    public void returned(final Map<String, String> state) {
+        final String correlationId = state.get(CORRELATION_ID);
+        final String startTime = state.get(START_TIME);
+        if (correlationId == null || startTime == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long dwell;
+        try {
+            dwell = now - Long.parseLong(startTime, RADIX);
+        } catch (final NumberFormatException ex) {
+            return;
+        }
+
+        // a replayed wctx, a redirect sent by another node or one already forgotten has no dwell time here
+        if (this.pending.remove(correlationId) == null) {
+            this.unmatched.incrementAndGet();
+            return;
+        }
+        this.returned.incrementAndGet();
+        this.dwellTime.record(dwell);
+        LOGGER.debug("returned: {} spent {} ms at the IdP", correlationId, dwell);
+    }
+
+    /**
+     * records the time between the issue of an assertion and its arrival at CAS.
+     *
+     * @param issueInstant the IssueInstant of the assertion, in milliseconds since the epoch
+     */
+    public void issued(final long issueInstant) {
+        this.issueLag.record(System.currentTimeMillis() - issueInstant);
+    }
+
+    /**
+     * dequeues the redirects that came back, counts the pending redirects older than the abandon timeout as
+     * abandoned, and forgets the oldest redirects while more than {@code maxPending} are pending or twice as many
+     * are queued. The caller holds the sweep lock.
+     *
+     * @param now the current time
+     */
+    private void sweep(final long now) {
+        final long expired = now - this.abandonTimeout;
+        Redirect oldest;
+        while ((oldest = this.sent.peek()) != null) {
+            final boolean isPending = oldest.startTime.equals(this.pending.get(oldest.correlationId));
+            if (isPending && oldest.startTime >= expired && this.pending.size() <= this.maxPending
+                    && this.sentSize.get() <= 2 * this.maxPending) {
+                return;
+            }
+
+            this.sent.poll();
+            this.sentSize.decrementAndGet();
+            if (isPending && this.pending.remove(oldest.correlationId, oldest.startTime)) {
+                this.abandoned.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * empties the histograms and counters.
+     */
+    @ManagedOperation(description = "Empties the histograms and counters")
+    public void reset() {
+        this.sweepLock.lock();
+        try {
+            this.pending.clear();
+            this.sent.clear();
+            this.sentSize.set(0);
+        } finally {
+            this.sweepLock.unlock();
+        }
+        this.dwellTime.reset();
+        this.issueLag.reset();
+        this.redirects.set(0);
+        this.returned.set(0);
+        this.unmatched.set(0);
+        this.abandoned.set(0);
+    }
+
+    /**
+     * gets the number of redirects to the IdP.
+     *
+     * @return the redirect count
+     */
+    @ManagedAttribute(description = "Redirects to the IdP")
+    public long getRedirectCount() {
+        return this.redirects.get();
+    }
+
+    /**
+     * gets the number of browsers that came back from the IdP to this node.
+     *
+     * @return the returned count
+     */
+    @ManagedAttribute(description = "Browsers that came back from the IdP")
+    public long getReturnedCount() {
+        return this.returned.get();
+    }
+
+    /**
+     * gets the number of callbacks whose redirect was not sent by this node, or was already seen or abandoned.
+     *
+     * @return the unmatched count
+     */
+    @ManagedAttribute(description = "Callbacks whose redirect was not pending on this node")
+    public long getUnmatchedCount() {
+        return this.unmatched.get();
+    }
+
+    /**
+     * gets the number of redirects that did not come back within the abandon timeout.
+     *
+     * @return the abandoned count
+     */
+    @ManagedAttribute(description = "Redirects that never came back from the IdP")
+    public long getAbandonedCount() {
+        this.sweepLock.lock();
+        try {
+            sweep(System.currentTimeMillis());
+        } finally {
+            this.sweepLock.unlock();
+        }
+        return this.abandoned.get();
+    }
+
+    /**
+     * gets the number of redirects waiting for their callback.
+     *
+     * @return the pending count
+     */
+    @ManagedAttribute(description = "Redirects waiting for their callback")
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * gets the histogram of the time spent at the IdP.
+     *
+     * @return the number of round trips per bucket, keyed by the upper bound of the bucket
+     */
+    @ManagedAttribute(description = "Time spent at the IdP (ms)")
+    public Map<String, Long> getIdpDwellTimeHistogram() {
+        return this.dwellTime.toMap();
+    }
+
+    /**
+     * gets the histogram of the time between the IssueInstant of the assertions and their arrival.
+     *
+     * @return the number of assertions per bucket, keyed by the upper bound of the bucket
+     */
+    @ManagedAttribute(description = "Time between the IssueInstant of the assertions and their arrival (ms)")
+    public Map<String, Long> getIssueLagHistogram() {
+        return this.issueLag.toMap();
+    }
+
+    /**
+     * gets the estimated median time spent at the IdP.
+     *
+     * @return the median in milliseconds
+     */
+    @ManagedAttribute(description = "Median time spent at the IdP (ms)")
+    public long getIdpDwellTimeMedian() {
+        return this.dwellTime.percentile(50);
+    }
+
+    /**
+     * gets the estimated 99th percentile of the time spent at the IdP.
+     *
+     * @return the 99th percentile in milliseconds
+     */
+    @ManagedAttribute(description = "99th percentile of the time spent at the IdP (ms)")
+    public long getIdpDwellTime99thPercentile() {
+        return this.dwellTime.percentile(99);
+    }
+
+    /**
+     * gets the estimated 99th percentile of the time between the IssueInstant of the assertions and their arrival.
+     *
+     * @return the 99th percentile in milliseconds
+     */
+    @ManagedAttribute(description = "99th percentile of the IssueInstant to arrival lag (ms)")
+    public long getIssueLag99thPercentile() {
+        return this.issueLag.percentile(99);
+    }
+
+    /**
+     * sets how long a redirect may stay at the IdP before it is counted as abandoned.
+     *
+     * @param abandonTimeout the timeout in milliseconds
+     */
+    public void setAbandonTimeout(final long abandonTimeout) {
+        this.abandonTimeout = abandonTimeout;
+    }
+
+    /**
+     * sets the maximum number of redirects waiting for their callback.
+     *
+     * @param maxPending the maximum number of pending redirects
+     */
+    public void setMaxPending(final int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * A redirect in the queue of sent redirects.
+     */
+    private static final class Redirect {
+        private final String correlationId;
+        private final Long startTime;
+
+        /**
+         * creates a queued redirect.
+         *
+         * @param correlationId the correlation id
+         * @param startTime     the time of the redirect
+         */
+        Redirect(final String correlationId, final long startTime) {
+            this.correlationId = correlationId;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * A histogram of durations with fixed buckets, from 10 ms to 10 minutes. Negative durations, caused by clock
+     * skew between the IdP and CAS, are counted in the first bucket.
+     */
+    static final class Histogram {
+        private static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000,
+            120000, 300000, 600000, Long.MAX_VALUE};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length);
+
+        /**
+         * records a duration.
+         *
+         * @param duration the duration in milliseconds
+         */
+        void record(final long duration) {
+            int bucket = 0;
+            while (duration > BOUNDS[bucket]) {
+                bucket++;
+            }
+            this.counts.incrementAndGet(bucket);
+        }
+
+        /**
+         * estimates a percentile as the upper bound of the bucket holding it.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the estimate in milliseconds, or 0 if nothing was recorded
+         */
+        long percentile(final int percentile) {
+            long total = 0;
+            final long[] snapshot = new long[BOUNDS.length];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = this.counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            final long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return BOUNDS[BOUNDS.length - 1];
+        }
+
+        /**
+         * gets the counts keyed by the upper bound of their bucket.
+         *
+         * @return the counts
+         */
+        Map<String, Long> toMap() {
+            final Map<String, Long> map = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < BOUNDS.length; i++) {
+                map.put(BOUNDS[i] == Long.MAX_VALUE ? "+Inf" : "<=" + BOUNDS[i], this.counts.get(i));
+            }
+            return map;
+        }
+
+        /**
+         * empties the histogram.
+         */
+        void reset() {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                this.counts.set(i, 0);
+            }
+        }
+    }
+}
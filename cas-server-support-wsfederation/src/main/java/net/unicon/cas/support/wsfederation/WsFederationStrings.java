@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.Charset;
+
+/**
+ * This class writes strings of any length as their UTF-8 length, seven bits per byte, followed by their UTF-8
+ * bytes. Unlike {@link DataOutput#writeUTF(String)}, it is not limited to 65535 bytes, and short strings take one
+ * length byte instead of two.
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationStrings {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int VARINT_BITS = 7;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+
+    /**
+     * private constructor.
+     */
+    private WsFederationStrings() {
+    }
+
+    /**
+     * writes a string.
+     *
+     * @param out   the output
+     * @param value the string
+     * @throws IOException if the string cannot be written
+     */
+    public static void write(final DataOutput out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        int length = bytes.length;
+        while ((length & ~VARINT_MASK) != 0) {
+            out.writeByte((length & VARINT_MASK) | VARINT_MORE);
+            length >>>= VARINT_BITS;
+        }
+        out.writeByte(length);
+        out.write(bytes);
+    }
+
+    /**
+     * reads a string written by {@link #write(DataOutput, String)}.
+     *
+     * @param in the input
+     * @return the string
+     * @throws IOException if the string cannot be read
+     */
+    public static String read(final DataInput in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int next;
+        do {
+            if (shift >= Integer.SIZE) {
+                throw new InvalidObjectException("String length is too large");
+            }
+            next = in.readUnsignedByte();
+            length |= (next & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+        } while ((next & VARINT_MORE) != 0);
+        if (length < 0) {
+            throw new InvalidObjectException("String length is negative");
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
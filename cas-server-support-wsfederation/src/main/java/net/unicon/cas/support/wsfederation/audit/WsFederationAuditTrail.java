@@ -0,0 +1,417 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.audit;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class records the successful WS-Federation logins in an append-only audit file, one tab separated line per
+ * login: the time, the assertion ID, the issuer, the principal, the authentication method, the delay between the
+ * issue of the token and its arrival in milliseconds, and the time spent validating the token and creating the
+ * ticket granting ticket in microseconds.
+ *
+ * <p>{@link #record} only copies the fields of the login into a lock-free queue. A background thread formats the
+ * queued records and appends them in batches, flushing at least every {@code flushInterval} milliseconds, so the
+ * request threads neither build strings nor wait for the disk. When {@code capacity} records are waiting, new
+ * records are dropped and counted rather than blocking the caller.</p>
+ *
+ * <p>A batch that cannot be written is kept: the writer closes the file, logs the failure and retries with the file
+ * reopened after {@code flushInterval} milliseconds. A record that cannot be formatted is dropped.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@ManagedResource(description = "WS-Federation login audit trail")
+public final class WsFederationAuditTrail implements InitializingBean, DisposableBean, Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationAuditTrail.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final DateTimeFormatter TIME_FORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
+    private static final char SEPARATOR = '\t';
+    private static final String EMPTY = "-";
+    private static final int LINE_SIZE = 256;
+
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @NotNull
+    private File file;
+
+    private int capacity = 10000;
+
+    private int batchSize = 100;
+
+    private long flushInterval = 1000;
+
+    private volatile boolean running;
+
+    private volatile Thread thread;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final File directory = this.file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+
+        this.running = true;
+        this.thread = new Thread(this, "wsfed-audit-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        LOGGER.info("Auditing WS-Federation logins in {}", this.file);
+    }
+
+    /**
+     * queues the record of a successful login.
+     *
+     * @param credential     the validated credential
+     * @param principal      the principal, may be null
+     * @param validationTime the time spent validating the token, in nanoseconds
+     * @param ticketTime     the time spent creating the ticket granting ticket, in nanoseconds
+     * @return true if the record was queued, false if the queue is full
+     */
+    public boolean record(final WsFederationCredential credential, final Object principal,
+                          final long validationTime, final long ticketTime) {
+        final int size = this.queued.incrementAndGet();
+        if (size > this.capacity) {
+            this.queued.decrementAndGet();
+            this.dropped.incrementAndGet();
+            return false;
+        }
+
+        this.queue.offer(new Record(System.currentTimeMillis(), credential, principal, validationTime, ticketTime));
+        if (size == this.batchSize && this.thread != null) {
+            LockSupport.unpark(this.thread);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        final StringBuilder batch = new StringBuilder(this.batchSize * LINE_SIZE);
+        Writer writer = null;
+        int pending = 0;
+        try {
+            boolean more = true;
+            while (more) {
+                // read the flag before draining, so the records queued before destroy are all written
+                more = this.running;
+
+                try {
+                    if (writer == null) {
+                        writer = Files.newBufferedWriter(this.file.toPath(), UTF8, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    }
+
+                    int count;
+                    do {
+                        // a batch that failed is written again before new records are taken
+                        count = pending > 0 ? pending : drain(batch);
+                        pending = count;
+                        if (count > 0) {
+                            writer.append(batch);
+                            writer.flush();
+                            this.written.addAndGet(count);
+                            pending = 0;
+                        }
+                    } while (count == this.batchSize);
+                } catch (final IOException | RuntimeException ex) {
+                    this.failed.incrementAndGet();
+                    LOGGER.error("Cannot write the audit trail to " + this.file + ": " + ex.getMessage(), ex);
+                    close(writer);
+                    writer = null;
+                }
+
+                if (more) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(this.flushInterval));
+                }
+            }
+        } finally {
+            close(writer);
+            if (pending > 0) {
+                LOGGER.warn("run: {} audit records could not be written", pending);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+            this.thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        final int lost = this.queued.get();
+        if (lost > 0) {
+            LOGGER.warn("destroy: {} audit records were not written", lost);
+        }
+    }
+
+    /**
+     * takes up to a batch of records from the queue and formats them.
+     *
+     * @param batch the buffer receiving the lines, cleared first
+     * @return the number of records taken
+     */
+    private int drain(final StringBuilder batch) {
+        batch.setLength(0);
+        int count = 0;
+        Record record;
+        while (count < this.batchSize && (record = this.queue.poll()) != null) {
+            this.queued.decrementAndGet();
+            final int length = batch.length();
+            try {
+                record.appendTo(batch);
+                count++;
+            } catch (final RuntimeException ex) {
+                batch.setLength(length);
+                this.dropped.incrementAndGet();
+                LOGGER.error("drain: dropped an audit record that cannot be formatted: " + ex.getMessage(), ex);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * closes the audit file, logging a failure.
+     *
+     * @param writer the writer of the file, may be null
+     */
+    private void close(final Writer writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (final IOException ex) {
+            LOGGER.warn("close: cannot close the audit trail {}: {}", this.file, ex.getMessage());
+        }
+    }
+
+    /**
+     * gets the number of records written to the file.
+     *
+     * @return the number of records written
+     */
+    @ManagedAttribute(description = "Records written")
+    public long getWritten() {
+        return this.written.get();
+    }
+
+    /**
+     * gets the number of records dropped because the queue was full or they could not be formatted.
+     *
+     * @return the number of records dropped
+     */
+    @ManagedAttribute(description = "Records dropped because the queue was full or they could not be formatted")
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * gets the number of failed attempts to write a batch.
+     *
+     * @return the number of failed writes
+     */
+    @ManagedAttribute(description = "Failed attempts to write a batch")
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * tells whether the background writer is running. Records queued while it is not are never written.
+     *
+     * @return true if the writer thread is alive
+     */
+    @ManagedAttribute(description = "Whether the background writer is running")
+    public boolean isWriterAlive() {
+        final Thread current = this.thread;
+        return current != null && current.isAlive();
+    }
+
+    /**
+     * gets the number of records waiting to be written.
+     *
+     * @return the number of queued records
+     */
+    @ManagedAttribute(description = "Records waiting to be written")
+    public int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * sets the file the records are appended to.
+     *
+     * @param file the audit file
+     */
+    public void setFile(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * sets the number of records that may wait to be written before new records are dropped.
+     *
+     * @param capacity the capacity of the queue
+     */
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * sets the largest number of records written at once.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * sets the longest time a record waits in the queue while logins are few.
+     *
+     * @param flushInterval the flush interval in milliseconds
+     */
+    public void setFlushInterval(final long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * The fields of a login, copied on the request thread and formatted by the writer.
+     */
+    private static final class Record {
+        private final long time;
+        private final String id;
+        private final String issuer;
+        private final Object principal;
+        private final String authenticationMethod;
+        private final long issuedOn;
+        private final long retrievedOn;
+        private final long validationTime;
+        private final long ticketTime;
+
+        /**
+         * creates the record of a login.
+         *
+         * @param time           the time of the login
+         * @param credential     the credential
+         * @param principal      the principal, may be null
+         * @param validationTime the validation time in nanoseconds
+         * @param ticketTime     the ticket creation time in nanoseconds
+         */
+        Record(final long time, final WsFederationCredential credential, final Object principal,
+               final long validationTime, final long ticketTime) {
+            this.time = time;
+            this.id = credential.getId();
+            this.issuer = credential.getIssuer();
+            this.principal = principal;
+            this.authenticationMethod = credential.getAuthenticationMethod();
+            this.issuedOn = credential.getIssuedOn() != null ? credential.getIssuedOn().getMillis() : -1;
+            this.retrievedOn = credential.getRetrievedOn() != null ? credential.getRetrievedOn().getMillis() : -1;
+            this.validationTime = validationTime;
+            this.ticketTime = ticketTime;
+        }
+
+        /**
+         * appends the record as one line.
+         *
+         * @param line the buffer
+         */
+        void appendTo(final StringBuilder line) {
+            line.append(TIME_FORMAT.print(this.time));
+            line.append(SEPARATOR);
+            appendValue(line, this.id);
+            line.append(SEPARATOR);
+            appendValue(line, this.issuer);
+            line.append(SEPARATOR);
+            appendValue(line, this.principal instanceof List && !((List<?>) this.principal).isEmpty()
+                    ? ((List<?>) this.principal).get(0) : this.principal);
+            line.append(SEPARATOR);
+            appendValue(line, this.authenticationMethod);
+            line.append(SEPARATOR);
+            if (this.issuedOn >= 0 && this.retrievedOn >= 0) {
+                line.append(this.retrievedOn - this.issuedOn);
+            } else {
+                line.append(EMPTY);
+            }
+            line.append(SEPARATOR);
+            line.append(TimeUnit.NANOSECONDS.toMicros(this.validationTime));
+            line.append(SEPARATOR);
+            line.append(TimeUnit.NANOSECONDS.toMicros(this.ticketTime));
+            line.append('\n');
+        }
+
+        /**
+         * appends a value, escaping the separators so a value cannot break the line into fields.
+         *
+         * @param line  the buffer
+         * @param value the value, may be null
+         */
+        private static void appendValue(final StringBuilder line, final Object value) {
+            if (value == null) {
+                line.append(EMPTY);
+                return;
+            }
+
+            final String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                switch (c) {
+                    case '\t':
+                        line.append("\\t");
+                        break;
+                    case '\n':
+                        line.append("\\n");
+                        break;
+                    case '\r':
+                        line.append("\\r");
+                        break;
+                    case '\\':
+                        line.append("\\\\");
+                        break;
+                    default:
+                        line.append(c);
+                }
+            }
+        }
+    }
+}
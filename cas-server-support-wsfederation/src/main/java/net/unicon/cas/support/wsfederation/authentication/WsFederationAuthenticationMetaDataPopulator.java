@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.authentication;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.AuthenticationMetaDataPopulator;
+import org.jasig.cas.authentication.Credential;
+
+/**
+ * This class copies the end of the validity window of the WsFederation assertion onto the authentication, as epoch
+ * milliseconds under {@link #NOT_ON_OR_AFTER}, so that the ticket granting ticket can be expired with it by a
+ * {@link net.unicon.cas.support.wsfederation.ticket.support.WsFederationExpirationPolicy}. Other credentials and
+ * assertions without conditions are left alone.
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationAuthenticationMetaDataPopulator implements AuthenticationMetaDataPopulator {
+    /** the authentication attribute holding the NotOnOrAfter of the assertion, in epoch milliseconds. */
+    public static final String NOT_ON_OR_AFTER = "wsFederationNotOnOrAfter";
+
+    @Override
+    public void populateAttributes(final AuthenticationBuilder builder, final Credential credential) {
+        if (credential instanceof WsFederationCredential) {
+            final WsFederationCredential wsFederationCredential = (WsFederationCredential) credential;
+            if (wsFederationCredential.getNotOnOrAfter() != null) {
+                builder.addAttribute(NOT_ON_OR_AFTER, wsFederationCredential.getNotOnOrAfter().getMillis());
+            }
+        }
+    }
+}
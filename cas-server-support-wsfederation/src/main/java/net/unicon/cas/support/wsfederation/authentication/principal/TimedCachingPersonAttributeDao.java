@@ -0,0 +1,413 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.authentication.principal;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.validation.constraints.NotNull;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the person looked up by principal id in front of another attribute repository, so that a
+ * user logging in again does not cost a round trip to the directory.
+ *
+ * <p>Entries expire after {@code timeToLive} milliseconds, or {@code negativeTimeToLive} when the repository did
+ * not find the person. Concurrent lookups of the same principal wait for a single repository query. When the cache
+ * holds more than {@code maxSize} entries, the entries expiring first are evicted, expired entries included.
+ * Loaded entries are indexed in two insertion ordered maps, one per time to live, so each map is in expiration order
+ * and an eviction only compares their heads. Hits do not touch the index.
+ * Only {@link #getPerson(String)}, the lookup used by principal resolvers, is cached; the other methods are
+ * passed through.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@ManagedResource(description = "WS-Federation person attribute cache")
+public final class TimedCachingPersonAttributeDao implements IPersonAttributeDao {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimedCachingPersonAttributeDao.class);
+
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+    /** the loaded entries of persons found by the repository, in expiration order. Guarded by itself. */
+    private final LinkedHashMap<String, CacheEntry> expirationOrder = new LinkedHashMap<String, CacheEntry>();
+
+    /** the loaded entries of persons not found by the repository, in expiration order. Guarded by expirationOrder. */
+    private final LinkedHashMap<String, CacheEntry> negativeExpirationOrder = new LinkedHashMap<String, CacheEntry>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeLoads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @NotNull
+    private IPersonAttributeDao attributeRepository;
+
+    private long timeToLive = 300000;
+
+    private long negativeTimeToLive = 30000;
+
+    private int maxSize = 10000;
+
+    @Override
+    public IPersonAttributes getPerson(final String uid) {
+        final long now = System.currentTimeMillis();
+        CacheEntry entry = this.cache.get(uid);
+        if (entry != null && entry.isExpired(now)) {
+            if (this.cache.remove(uid, entry)) {
+                unindex(entry);
+            }
+            entry = null;
+        }
+
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            return entry.get(uid);
+        }
+
+        final CacheEntry loading = new CacheEntry(uid);
+        entry = this.cache.putIfAbsent(uid, loading);
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            return entry.get(uid);
+        }
+
+        this.misses.incrementAndGet();
+        if (loading.load()) {
+            index(loading);
+        }
+        return loading.get(uid);
+    }
+
+    /**
+     * indexes a loaded entry, then evicts the entries expiring first until the cache is back under its size.
+     *
+     * @param entry the loaded entry
+     */
+    private void index(final CacheEntry entry) {
+        synchronized (this.expirationOrder) {
+            if (this.cache.get(entry.uid) != entry) {
+                // removed by clear() while it was loading
+                return;
+            }
+            (entry.negative ? this.negativeExpirationOrder : this.expirationOrder).put(entry.uid, entry);
+
+            int evicted = 0;
+            while (this.expirationOrder.size() + this.negativeExpirationOrder.size() > this.maxSize) {
+                final Iterator<CacheEntry> positive = this.expirationOrder.values().iterator();
+                final Iterator<CacheEntry> negative = this.negativeExpirationOrder.values().iterator();
+                final CacheEntry first = positive.hasNext() ? positive.next() : null;
+                final CacheEntry firstNegative = negative.hasNext() ? negative.next() : null;
+                if (firstNegative != null && (first == null || firstNegative.expiresAt <= first.expiresAt)) {
+                    negative.remove();
+                    this.cache.remove(firstNegative.uid, firstNegative);
+                } else {
+                    positive.remove();
+                    this.cache.remove(first.uid, first);
+                }
+                evicted++;
+            }
+            if (evicted > 0) {
+                this.evictions.addAndGet(evicted);
+                LOGGER.debug("index: evicted {} entries", evicted);
+            }
+        }
+    }
+
+    /**
+     * removes an entry removed from the cache from the expiration index.
+     *
+     * @param entry the entry
+     */
+    private void unindex(final CacheEntry entry) {
+        synchronized (this.expirationOrder) {
+            final Map<String, CacheEntry> order = entry.negative ? this.negativeExpirationOrder : this.expirationOrder;
+            // a newer entry of the same principal may already be indexed
+            if (order.get(entry.uid) == entry) {
+                order.remove(entry.uid);
+            }
+        }
+    }
+
+    /**
+     * empties the cache.
+     */
+    @ManagedOperation(description = "Empties the cache")
+    public void clear() {
+        synchronized (this.expirationOrder) {
+            this.cache.clear();
+            this.expirationOrder.clear();
+            this.negativeExpirationOrder.clear();
+        }
+    }
+
+    /**
+     * gets the number of cached entries.
+     *
+     * @return the size
+     */
+    @ManagedAttribute(description = "Number of cached entries")
+    public int getSize() {
+        return this.cache.size();
+    }
+
+    /**
+     * gets the number of lookups answered from the cache, including lookups that waited for an in-flight query.
+     *
+     * @return the hit count
+     */
+    @ManagedAttribute(description = "Lookups answered from the cache")
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * gets the number of lookups that queried the attribute repository.
+     *
+     * @return the miss count
+     */
+    @ManagedAttribute(description = "Lookups that queried the attribute repository")
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * gets the ratio of lookups answered from the cache.
+     *
+     * @return the hit ratio, between 0 and 1
+     */
+    @ManagedAttribute(description = "Ratio of lookups answered from the cache")
+    public double getHitRatio() {
+        final long hitCount = this.hits.get();
+        final long total = hitCount + this.misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * gets the number of repository queries that found no person.
+     *
+     * @return the negative load count
+     */
+    @ManagedAttribute(description = "Repository queries that found no person")
+    public long getNegativeLoadCount() {
+        return this.negativeLoads.get();
+    }
+
+    /**
+     * gets the average time spent querying the attribute repository.
+     *
+     * @return the average load time in milliseconds
+     */
+    @ManagedAttribute(description = "Average repository query time in milliseconds")
+    public double getAverageLoadTime() {
+        final long loads = this.misses.get();
+        return loads == 0 ? 0 : this.loadTime.get() / 1000000.0 / loads;
+    }
+
+    /**
+     * gets the number of entries removed because they expired or the cache was full.
+     *
+     * @return the eviction count
+     */
+    @ManagedAttribute(description = "Entries removed because they expired or the cache was full")
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * sets the attribute repository being cached.
+     *
+     * @param attributeRepository the attribute repository
+     */
+    public void setAttributeRepository(final IPersonAttributeDao attributeRepository) {
+        this.attributeRepository = attributeRepository;
+    }
+
+    /**
+     * sets how long a person found by the repository is cached.
+     *
+     * @param timeToLive the time to live in milliseconds
+     */
+    public void setTimeToLive(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * sets how long the absence of a person is cached.
+     *
+     * @param negativeTimeToLive the time to live in milliseconds
+     */
+    public void setNegativeTimeToLive(final long negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * sets the maximum number of cached entries.
+     *
+     * @param maxSize the maximum number of entries
+     */
+    public void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public Set<IPersonAttributes> getPeople(final Map<String, Object> query) {
+        return this.attributeRepository.getPeople(query);
+    }
+
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        return this.attributeRepository.getPeopleWithMultivaluedAttributes(query);
+    }
+
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.attributeRepository.getPossibleUserAttributeNames();
+    }
+
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        return this.attributeRepository.getAvailableQueryAttributes();
+    }
+
+    @Override
+    @Deprecated
+    public Map<String, List<Object>> getMultivaluedUserAttributes(final Map<String, List<Object>> seed) {
+        return this.attributeRepository.getMultivaluedUserAttributes(seed);
+    }
+
+    @Override
+    @Deprecated
+    public Map<String, List<Object>> getMultivaluedUserAttributes(final String uid) {
+        return this.attributeRepository.getMultivaluedUserAttributes(uid);
+    }
+
+    @Override
+    @Deprecated
+    public Map<String, Object> getUserAttributes(final Map<String, Object> seed) {
+        return this.attributeRepository.getUserAttributes(seed);
+    }
+
+    @Override
+    @Deprecated
+    public Map<String, Object> getUserAttributes(final String uid) {
+        return this.attributeRepository.getUserAttributes(uid);
+    }
+
+    /**
+     * A cached person, or the single in-flight query loading it.
+     */
+    private final class CacheEntry {
+        private final String uid;
+
+        private final FutureTask<IPersonAttributes> task;
+
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private volatile boolean negative;
+
+        /**
+         * creates an entry that loads a person from the repository.
+         *
+         * @param uid the principal id
+         */
+        CacheEntry(final String uid) {
+            this.uid = uid;
+            this.task = new FutureTask<IPersonAttributes>(new Callable<IPersonAttributes>() {
+                @Override
+                public IPersonAttributes call() throws Exception {
+                    return attributeRepository.getPerson(uid);
+                }
+            });
+        }
+
+        /**
+         * queries the repository and sets the expiration of the entry.
+         *
+         * @return true if the repository answered, false if the query failed
+         */
+        boolean load() {
+            final long start = System.nanoTime();
+            this.task.run();
+            loadTime.addAndGet(System.nanoTime() - start);
+
+            try {
+                final IPersonAttributes person = this.task.get();
+                if (person == null) {
+                    negativeLoads.incrementAndGet();
+                    this.negative = true;
+                    this.expiresAt = System.currentTimeMillis() + negativeTimeToLive;
+                } else {
+                    this.expiresAt = System.currentTimeMillis() + timeToLive;
+                }
+                return true;
+            } catch (final InterruptedException | ExecutionException ex) {
+                // failures are not cached
+                this.expiresAt = Long.MIN_VALUE;
+                return false;
+            }
+        }
+
+        /**
+         * waits for the person, removing the entry if the query failed.
+         *
+         * @param uid the principal id
+         * @return the person, or null if the repository did not find it
+         */
+        IPersonAttributes get(final String uid) {
+            try {
+                return this.task.get();
+            } catch (final ExecutionException ex) {
+                cache.remove(uid, this);
+                final Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Attribute repository query failed for " + uid, cause);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the attributes of " + uid, ex);
+            }
+        }
+
+        /**
+         * tells whether the entry is expired. Entries still loading never expire.
+         *
+         * @param now the current time
+         * @return true if the entry is expired
+         */
+        boolean isExpired(final long now) {
+            return this.task.isDone() && this.expiresAt <= now;
+        }
+    }
+}
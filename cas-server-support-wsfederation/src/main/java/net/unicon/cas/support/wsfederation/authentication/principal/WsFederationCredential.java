@@ -16,21 +16,88 @@
 
 package net.unicon.cas.support.wsfederation.authentication.principal;
 
+import net.unicon.cas.support.wsfederation.WsFederationStrings;
 import org.jasig.cas.authentication.Credential;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class represents the basic elements of the WsFederation token.
  *
+ * <p>The credential travels with the authentication in replicated ticket registries, so it uses a compact wire
+ * format: timestamps are written as epoch milliseconds and read back in UTC, and well known claim names are written
+ * as a one byte index into {@link #CLAIM_DICTIONARY}.</p>
+ *
+ * <p>Strings are written as their UTF-8 length followed by their UTF-8 bytes, so attribute values of any length are
+ * written. Credentials serialized by releases before 1.0.1, which did not have this format, cannot be read: drain or
+ * clear replicated ticket registries when upgrading from them.</p>
+ *
  * @author John Gasper
  * @since 3.5.2
  */
-public final class WsFederationCredential implements Credential {
-    private final Logger logger = LoggerFactory.getLogger(WsFederationCredential.class);
+public final class WsFederationCredential implements Credential, Externalizable {
+    private static final long serialVersionUID = -824605020472810939L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationCredential.class);
+
+    /**
+     * claim names written as their index. Entries may only be appended, never reordered or removed.
+     */
+    private static final List<String> CLAIM_DICTIONARY = Collections.unmodifiableList(Arrays.asList(
+            "upn", "emailaddress", "givenname", "surname", "name", "Group", "role", "commonname",
+            "nameidentifier", "windowsaccountname", "primarysid", "primarygroupsid", "groupsid", "denyonlysid",
+            "authenticationmethod", "authenticationinstant", "privatepersonalidentifier", "streetaddress",
+            "locality", "stateorprovince", "postalcode", "country", "homephone", "otherphone", "mobilephone",
+            "dateofbirth", "gender", "webpage", "uri", "dns", "spn", "thumbprint"));
+
+    private static final Map<String, Integer> CLAIM_INDEXES = new HashMap<String, Integer>();
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int LITERAL_NAME = 0xFF;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_LIST = 2;
+    private static final byte VALUE_OBJECT = 3;
+    private static final int TO_STRING_SIZE = 512;
+
+    static {
+        for (int i = 0; i < CLAIM_DICTIONARY.size(); i++) {
+            CLAIM_INDEXES.put(CLAIM_DICTIONARY.get(i), i);
+        }
+    }
+
+    /**
+     * The outcome of {@link #validate(Set, String, int)}.
+     */
+    public enum ValidationResult {
+        /** the credential is valid. */
+        VALID,
+        /** the token was not issued to an expected audience. */
+        INVALID_AUDIENCE,
+        /** the token was not issued by the expected IdP. */
+        INVALID_ISSUER,
+        /** the token was issued too far from the time it was retrieved. */
+        OUTSIDE_DRIFT,
+        /** the token was retrieved after it expired. */
+        EXPIRED
+    }
 
     private String audience;
     private String authenticationMethod;
@@ -121,17 +188,22 @@ public final class WsFederationCredential implements Credential {
      */
     @Override
     public String toString() {
-        String attributeList = "";
-
-        for (final String attr : this.attributes.keySet()) {
-            attributeList += "  " + attr + ": " + (attributes.get(attr)) + "\n";
+        final StringBuilder readable = new StringBuilder(TO_STRING_SIZE);
+        readable.append("ID: ").append(this.id)
+                .append("\nIssuer: ").append(this.issuer)
+                .append("\nAudience: ").append(this.audience)
+                .append("\nAudience Method: ").append(this.authenticationMethod)
+                .append("\nIssued On: ").append(this.issuedOn)
+                .append("\nValid After: ").append(this.notBefore)
+                .append("\nValid Before: ").append(this.notOnOrAfter)
+                .append("\nAttributes:\n");
+
+        if (this.attributes != null) {
+            for (final Map.Entry<String, Object> entry : this.attributes.entrySet()) {
+                readable.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
         }
-
-        final String readable = "ID: %s\nIssuer: %s\nAudience: %s\nAudience Method: %s\nIssued On: %s\n"
-                + "Valid After: %s\nValid Before: %s\nAttributes:\n%s";
-
-        return String.format(readable, this.id, this.issuer, this.audience, this.authenticationMethod,
-                this.issuedOn.toString(), this.notBefore.toString(), this.notOnOrAfter.toString(), attributeList);
+        return readable.toString();
     }
 
     /**
@@ -143,28 +215,240 @@ public final class WsFederationCredential implements Credential {
      * @return true if the credentials are valid, otherwise false
      */
     public boolean isValid(final String expectedAudience, final String expectedIssuer, final int timeDrift) {
-        if (!this.getAudience().equalsIgnoreCase(expectedAudience)) {
-            logger.warn(".isValid: audience is invalid: {}", this.getAudience());
-            return false;
+        return isValid(Collections.singleton(expectedAudience.toLowerCase(Locale.ENGLISH)), expectedIssuer, timeDrift);
+    }
+
+    /**
+     * isValid validates the credential against a set of accepted audiences.
+     *
+     * @param expectedAudiences the lower case audiences that the token may be issued to (CAS Server realms)
+     * @param expectedIssuer    the issuer of the token (the IdP)
+     * @param timeDrift         the amount of acceptable time drift
+     * @return true if the credentials are valid, otherwise false
+     */
+    public boolean isValid(final Set<String> expectedAudiences, final String expectedIssuer, final int timeDrift) {
+        return validate(expectedAudiences, expectedIssuer, timeDrift) == ValidationResult.VALID;
+    }
+
+    /**
+     * validate validates the credential against a set of accepted audiences and tells why it is not valid.
+     *
+     * @param expectedAudiences the lower case audiences that the token may be issued to (CAS Server realms)
+     * @param expectedIssuer    the issuer of the token (the IdP)
+     * @param timeDrift         the amount of acceptable time drift
+     * @return VALID, or the first check the credential failed
+     */
+    public ValidationResult validate(final Set<String> expectedAudiences, final String expectedIssuer,
+                                     final int timeDrift) {
+        if (this.getAudience() == null || !expectedAudiences.contains(this.getAudience().toLowerCase(Locale.ENGLISH))) {
+            LOGGER.warn(".isValid: audience is invalid: {}", this.getAudience());
+            return ValidationResult.INVALID_AUDIENCE;
         }
 
         if (!this.getIssuer().equalsIgnoreCase(expectedIssuer)) {
-            logger.warn(".isValid: issuer is invalid: {}", this.getIssuer());
-            return false;
+            LOGGER.warn(".isValid: issuer is invalid: {}", this.getIssuer());
+            return ValidationResult.INVALID_ISSUER;
         }
 
         if (this.getIssuedOn().isBefore(this.getRetrievedOn().minusMillis(timeDrift))
                 || this.getIssuedOn().isAfter(this.getRetrievedOn().plusMillis(timeDrift))) {
-            logger.warn(".isValid: Ticket outside of drift.");
-            return false;
+            LOGGER.warn(".isValid: Ticket outside of drift.");
+            return ValidationResult.OUTSIDE_DRIFT;
         }
 
         if (this.getRetrievedOn().isAfter(this.getNotOnOrAfter())) {
-            logger.warn(".isValid: ticket is too late.");
-            return false;
+            LOGGER.warn(".isValid: ticket is too late.");
+            return ValidationResult.EXPIRED;
+        }
+
+        LOGGER.debug(".isValid: credential is valid.");
+        return ValidationResult.VALID;
+    }
+
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, this.id);
+        writeString(out, this.issuer);
+        writeString(out, this.audience);
+        writeString(out, this.authenticationMethod);
+        writeTime(out, this.issuedOn);
+        writeTime(out, this.notBefore);
+        writeTime(out, this.notOnOrAfter);
+        writeTime(out, this.retrievedOn);
+
+        if (this.attributes == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(this.attributes.size());
+        for (final Map.Entry<String, Object> entry : this.attributes.entrySet()) {
+            final Integer index = CLAIM_INDEXES.get(entry.getKey());
+            if (index != null) {
+                out.writeByte(index);
+            } else {
+                out.writeByte(LITERAL_NAME);
+                WsFederationStrings.write(out, entry.getKey());
+            }
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+        final byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unsupported WsFederationCredential format version " + version);
         }
 
-        logger.debug(".isValid: credential is valid.");
+        this.id = readString(in);
+        this.issuer = readString(in);
+        this.audience = readString(in);
+        this.authenticationMethod = readString(in);
+        this.issuedOn = readTime(in);
+        this.notBefore = readTime(in);
+        this.notOnOrAfter = readTime(in);
+        this.retrievedOn = readTime(in);
+
+        final int size = in.readInt();
+        if (size < 0) {
+            this.attributes = null;
+            return;
+        }
+
+        this.attributes = new HashMap<String, Object>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            final int index = in.readUnsignedByte();
+            final String name;
+            if (index == LITERAL_NAME) {
+                name = WsFederationStrings.read(in);
+            } else if (index < CLAIM_DICTIONARY.size()) {
+                name = CLAIM_DICTIONARY.get(index);
+            } else {
+                throw new InvalidObjectException("Unknown claim name index " + index);
+            }
+            this.attributes.put(name, readValue(in));
+        }
+    }
+
+    /**
+     * writes a nullable string.
+     *
+     * @param out   the output
+     * @param value the string
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeString(final ObjectOutput out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            WsFederationStrings.write(out, value);
+        }
+    }
+
+    /**
+     * reads a nullable string.
+     *
+     * @param in the input
+     * @return the string
+     * @throws IOException if the string cannot be read
+     */
+    private static String readString(final ObjectInput in) throws IOException {
+        return in.readBoolean() ? WsFederationStrings.read(in) : null;
+    }
+
+    /**
+     * writes a nullable timestamp as epoch milliseconds.
+     *
+     * @param out   the output
+     * @param value the timestamp
+     * @throws IOException if the timestamp cannot be written
+     */
+    private static void writeTime(final ObjectOutput out, final DateTime value) throws IOException {
+        out.writeLong(value != null ? value.getMillis() : NO_TIME);
+    }
+
+    /**
+     * reads a nullable timestamp in UTC.
+     *
+     * @param in the input
+     * @return the timestamp
+     * @throws IOException if the timestamp cannot be read
+     */
+    private static DateTime readTime(final ObjectInput in) throws IOException {
+        final long millis = in.readLong();
+        return millis != NO_TIME ? new DateTime(millis, DateTimeZone.UTC) : null;
+    }
+
+    /**
+     * writes an attribute value. Strings and lists of strings, the values created from the token, are written
+     * directly; anything else falls back to Java serialization.
+     *
+     * @param out   the output
+     * @param value the value
+     * @throws IOException if the value cannot be written
+     */
+    private static void writeValue(final ObjectOutput out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            WsFederationStrings.write(out, (String) value);
+        } else if (value instanceof List && isStringList((List<?>) value)) {
+            final List<?> values = (List<?>) value;
+            out.writeByte(VALUE_LIST);
+            out.writeInt(values.size());
+            for (final Object item : values) {
+                WsFederationStrings.write(out, (String) item);
+            }
+        } else {
+            out.writeByte(VALUE_OBJECT);
+            out.writeObject(value);
+        }
+    }
+
+    /**
+     * reads an attribute value.
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException            if the value cannot be read
+     * @throws ClassNotFoundException if the class of a serialized value is not found
+     */
+    private static Object readValue(final ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        final byte type = in.readByte();
+        switch (type) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return WsFederationStrings.read(in);
+            case VALUE_LIST:
+                final int size = in.readInt();
+                final List<String> values = new ArrayList<String>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(WsFederationStrings.read(in));
+                }
+                return values;
+            case VALUE_OBJECT:
+                return in.readObject();
+            default:
+                throw new InvalidObjectException("Unknown attribute value type " + type);
+        }
+    }
+
+    /**
+     * tells whether every item of a list is a non null string.
+     *
+     * @param values the list
+     * @return true if the list only holds strings
+     */
+    private static boolean isStringList(final List<?> values) {
+        for (final Object item : values) {
+            if (!(item instanceof String)) {
+                return false;
+            }
+        }
         return true;
     }
 }
@@ -17,49 +17,250 @@
 package net.unicon.cas.support.wsfederation.authentication.principal;
 
 import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import net.unicon.cas.support.wsfederation.WsFederationConfigurationRegistry;
 import org.jasig.cas.authentication.Credential;
-import org.jasig.cas.authentication.principal.PersonDirectoryPrincipalResolver;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.PrincipalResolver;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.StubPersonAttributeDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.validation.constraints.NotNull;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This class resolves the principal id regarding the WsFederation credentials.
  *
+ * <p>Depending on the {@link Mode}, the principal attributes come from the attribute repository (the default,
+ * which matches {@link org.jasig.cas.authentication.principal.PersonDirectoryPrincipalResolver}), from the claims
+ * released by the IdP only, or from the claims completed by the attribute repository when a required attribute
+ * is missing from them.</p>
+ *
  * @author John Gasper
  * @since 3.5.1
  */
-public final class WsFederationCredentialsToPrincipalResolver extends PersonDirectoryPrincipalResolver {
+public final class WsFederationCredentialsToPrincipalResolver implements PrincipalResolver {
+
+    /**
+     * Where the principal attributes come from.
+     */
+    public enum Mode {
+        /** the attributes are queried from the attribute repository. */
+        REPOSITORY,
+        /** the attributes are the claims of the credential; the attribute repository is never queried. */
+        CLAIMS,
+        /** the attributes are the claims, completed by the attribute repository when a required attribute is missing. */
+        MERGE
+    }
 
     private final Logger logger = LoggerFactory.getLogger(WsFederationCredentialsToPrincipalResolver.class);
 
-    private WsFederationConfiguration configuration;
+    private WsFederationConfigurationRegistry configurationRegistry;
+
+    @NotNull
+    private IPersonAttributeDao attributeRepository = new StubPersonAttributeDao(new HashMap<String, List<Object>>());
+
+    private boolean returnNullIfNoAttributes;
+
+    private String principalAttributeName;
+
+    @NotNull
+    private Mode mode = Mode.REPOSITORY;
+
+    private List<String> requiredAttributes = Collections.emptyList();
+
+    @Override
+    public Principal resolve(final Credential credential) {
+        logger.debug("Attempting to resolve a principal...");
+
+        final WsFederationCredential wsFedCredentials = (WsFederationCredential) credential;
+        final String principalId = extractPrincipalId(wsFedCredentials);
+        if (principalId == null) {
+            logger.debug("Got null for extracted principal ID; returning null.");
+            return null;
+        }
+
+        switch (this.mode) {
+            case CLAIMS:
+                return new SimplePrincipal(principalId, new HashMap<String, Object>(wsFedCredentials.getAttributes()));
+            case MERGE:
+                return resolveMerged(principalId, wsFedCredentials);
+            default:
+                return resolveFromRepository(principalId);
+        }
+    }
 
     /**
      * Extracts the principalId.
      *
-     * @param credentials the credentials
+     * @param wsFedCredentials the credentials
      * @return the principal id
      */
-    @Override
-    protected String extractPrincipalId(final Credential credentials) {
+    private String extractPrincipalId(final WsFederationCredential wsFedCredentials) {
+        WsFederationConfiguration configuration = this.configurationRegistry.getConfigurationForIssuer(
+                wsFedCredentials.getIssuer());
+        if (configuration == null) {
+            configuration = this.configurationRegistry.getDefaultConfiguration();
+        }
+
+        final Object identity = wsFedCredentials.getAttributes().get(configuration.getIdentityAttribute());
+        if (identity == null) {
+            logger.warn("The identity attribute {} was not released by the IdP", configuration.getIdentityAttribute());
+            return null;
+        }
 
-        final WsFederationCredential wsFedCredentials = (WsFederationCredential) credentials;
-        final String principalId = wsFedCredentials.getAttributes().get(
-                this.configuration.getIdentityAttribute()
-        ).toString();
+        final String principalId = identity.toString();
         logger.debug("principalId : {}", principalId);
         return principalId;
     }
 
+    /**
+     * Resolves the principal from the attribute repository, like the CAS PersonDirectoryPrincipalResolver.
+     *
+     * @param principalId the principal id
+     * @return the principal
+     */
+    private Principal resolveFromRepository(final String principalId) {
+        final Map<String, List<Object>> attributes = queryRepository(principalId);
+        if (attributes == null) {
+            return this.returnNullIfNoAttributes ? null : new SimplePrincipal(principalId);
+        }
+
+        String id = principalId;
+        final Map<String, Object> convertedAttributes = new HashMap<String, Object>();
+        for (final Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+            final List<Object> values = entry.getValue();
+            if (entry.getKey().equalsIgnoreCase(this.principalAttributeName)) {
+                if (values.isEmpty()) {
+                    logger.debug("{} is empty, using {} for principal", this.principalAttributeName, principalId);
+                } else {
+                    id = values.get(0).toString();
+                    logger.debug("Found principal attribute value {}; removing {} from attribute map.",
+                            id, this.principalAttributeName);
+                }
+            } else {
+                convertedAttributes.put(entry.getKey(), values.size() == 1 ? values.get(0) : values);
+            }
+        }
+        return new SimplePrincipal(id, convertedAttributes);
+    }
+
+    /**
+     * Resolves the principal from the claims, querying the attribute repository only when a required attribute
+     * is missing from them. Claims take precedence over repository attributes.
+     *
+     * @param principalId      the principal id
+     * @param wsFedCredentials the credentials
+     * @return the principal
+     */
+    private Principal resolveMerged(final String principalId, final WsFederationCredential wsFedCredentials) {
+        final Map<String, Object> attributes = new HashMap<String, Object>(wsFedCredentials.getAttributes());
+
+        boolean complete = true;
+        for (final String required : this.requiredAttributes) {
+            if (!attributes.containsKey(required)) {
+                complete = false;
+                break;
+            }
+        }
 
+        if (!complete) {
+            logger.debug("Required attributes are missing from the claims; querying the attribute repository");
+            final Map<String, List<Object>> repositoryAttributes = queryRepository(principalId);
+            if (repositoryAttributes != null) {
+                for (final Map.Entry<String, List<Object>> entry : repositoryAttributes.entrySet()) {
+                    final List<Object> values = entry.getValue();
+                    if (!attributes.containsKey(entry.getKey()) && !values.isEmpty()) {
+                        attributes.put(entry.getKey(), values.size() == 1 ? values.get(0) : values);
+                    }
+                }
+            }
+        }
+        return new SimplePrincipal(principalId, attributes);
+    }
+
+    /**
+     * Queries the attribute repository.
+     *
+     * @param principalId the principal id
+     * @return the attributes, or null if the person was not found
+     */
+    private Map<String, List<Object>> queryRepository(final String principalId) {
+        final IPersonAttributes person = this.attributeRepository.getPerson(principalId);
+        if (person == null) {
+            logger.debug("Attribute repository returned no person for {}", principalId);
+            return null;
+        }
+        return person.getAttributes();
+    }
 
     /**
-     * Sets the configuration.
+     * Sets the configuration when a single IdP is trusted.
      *
      * @param configuration a configuration
      */
     public void setConfiguration(final WsFederationConfiguration configuration) {
-        this.configuration = configuration;
+        this.configurationRegistry = new WsFederationConfigurationRegistry(configuration);
+    }
+
+    /**
+     * Sets the configurations when several IdPs are trusted.
+     *
+     * @param configurationRegistry a configuration registry
+     */
+    public void setConfigurationRegistry(final WsFederationConfigurationRegistry configurationRegistry) {
+        this.configurationRegistry = configurationRegistry;
+    }
+
+    /**
+     * Sets the attribute repository.
+     *
+     * @param attributeRepository the attribute repository
+     */
+    public void setAttributeRepository(final IPersonAttributeDao attributeRepository) {
+        this.attributeRepository = attributeRepository;
+    }
+
+    /**
+     * Sets whether a null principal is returned when the attribute repository does not find the person.
+     *
+     * @param returnNullIfNoAttributes true to return null
+     */
+    public void setReturnNullIfNoAttributes(final boolean returnNullIfNoAttributes) {
+        this.returnNullIfNoAttributes = returnNullIfNoAttributes;
+    }
+
+    /**
+     * Sets the repository attribute used as principal id instead of the identity attribute.
+     *
+     * @param principalAttributeName the attribute name
+     */
+    public void setPrincipalAttributeName(final String principalAttributeName) {
+        this.principalAttributeName = principalAttributeName;
+    }
+
+    /**
+     * Sets where the principal attributes come from.
+     *
+     * @param mode the mode
+     */
+    public void setMode(final Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the attributes that must be present in the claims to skip the attribute repository in MERGE mode.
+     *
+     * @param requiredAttributes the attribute names
+     */
+    public void setRequiredAttributes(final List<String> requiredAttributes) {
+        this.requiredAttributes = requiredAttributes;
     }
 
     @Override
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.logout;
+
+import org.jasig.cas.util.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends the CAS back-channel logout requests on a bounded pool of threads, so that the logout of the
+ * services of a ticket is sent concurrently and the request that triggered it (a WS-Federation sign out from the
+ * IdP or a CAS logout) does not wait for the slowest service.
+ *
+ * <p>Each request has its own connect and read timeouts. When the queue of pending requests is full, new
+ * asynchronous requests are dropped and counted rather than blocking the caller. Synchronous requests, such as the
+ * endpoint checks of proxy callbacks, are sent on the calling thread.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@ManagedResource(description = "WS-Federation back-channel logout client")
+public final class WsFederationLogoutHttpClient implements HttpClient, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationLogoutHttpClient.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 512;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private int threads = 10;
+
+    private int queueSize = 1000;
+
+    private int connectTimeout = 5000;
+
+    private int readTimeout = 5000;
+
+    private volatile ThreadPoolExecutor executor;
+
+    @Override
+    public boolean sendMessageToEndPoint(final String url, final String message, final boolean async) {
+        final MessageSender sender = new MessageSender(url, message);
+        if (!async) {
+            return sender.send();
+        }
+
+        try {
+            getExecutor().execute(sender);
+            return true;
+        } catch (final RejectedExecutionException ex) {
+            this.rejected.incrementAndGet();
+            LOGGER.warn("sendMessageToEndPoint: logout queue is full, dropped the logout of {}", url);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isValidEndPoint(final String url) {
+        try {
+            return isValidEndPoint(new URL(url));
+        } catch (final MalformedURLException ex) {
+            LOGGER.warn("isValidEndPoint: {} is not a valid url", url);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isValidEndPoint(final URL url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            connection.setInstanceFollowRedirects(false);
+            final int status = connection.getResponseCode();
+            drain(connection);
+            return status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_BAD_REQUEST;
+        } catch (final IOException ex) {
+            LOGGER.warn("isValidEndPoint: {} is not reachable: {}", url, ex.getMessage());
+            disconnect(connection);
+            return false;
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        final ThreadPoolExecutor current = this.executor;
+        if (current != null) {
+            current.shutdown();
+            if (!current.awaitTermination(this.connectTimeout + this.readTimeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("destroy: {} logout requests were not sent", current.shutdownNow().size());
+            }
+        }
+    }
+
+    /**
+     * gets the executor, creating it on first use.
+     *
+     * @return the executor
+     */
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor current = this.executor;
+        if (current == null) {
+            synchronized (this) {
+                current = this.executor;
+                if (current == null) {
+                    current = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(this.queueSize), new LogoutThreadFactory(),
+                            new ThreadPoolExecutor.AbortPolicy());
+                    current.allowCoreThreadTimeOut(true);
+                    this.executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * gets the number of logout requests answered by the services.
+     *
+     * @return the sent count
+     */
+    @ManagedAttribute(description = "Logout requests answered by the services")
+    public long getSentCount() {
+        return this.sent.get();
+    }
+
+    /**
+     * gets the number of logout requests that failed or timed out.
+     *
+     * @return the failed count
+     */
+    @ManagedAttribute(description = "Logout requests that failed or timed out")
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * gets the number of logout requests dropped because the queue was full.
+     *
+     * @return the rejected count
+     */
+    @ManagedAttribute(description = "Logout requests dropped because the queue was full")
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * gets the number of logout requests waiting for a thread.
+     *
+     * @return the pending count
+     */
+    @ManagedAttribute(description = "Logout requests waiting for a thread")
+    public int getPendingCount() {
+        final ThreadPoolExecutor current = this.executor;
+        return current == null ? 0 : current.getQueue().size();
+    }
+
+    /**
+     * sets the number of threads sending logout requests.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * sets the number of logout requests that can wait for a thread.
+     *
+     * @param queueSize the queue size
+     */
+    public void setQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * sets how long to wait for a connection to a service.
+     *
+     * @param connectTimeout the timeout in milliseconds
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * sets how long to wait for the response of a service.
+     *
+     * @param readTimeout the timeout in milliseconds
+     */
+    public void setReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * reads and discards the response body, so the connection goes back to the keep-alive cache of the JDK and is
+     * reused by the next request to the same service.
+     *
+     * @param connection the connection
+     * @throws IOException if the body cannot be read
+     */
+    private static void drain(final HttpURLConnection connection) throws IOException {
+        final InputStream in = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) >= 0) {
+                    continue;
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * closes a connection that failed, rather than returning it to the keep-alive cache.
+     *
+     * @param connection the connection, may be null
+     */
+    private static void disconnect(final HttpURLConnection connection) {
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Posts one logout request to a service.
+     */
+    private final class MessageSender implements Runnable {
+        private final String url;
+
+        private final String message;
+
+        /**
+         * creates a sender.
+         *
+         * @param url     the url of the service
+         * @param message the logout message
+         */
+        MessageSender(final String url, final String message) {
+            this.url = url;
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            send();
+        }
+
+        /**
+         * posts the message.
+         *
+         * @return true if the service answered with a success status
+         */
+        boolean send() {
+            HttpURLConnection connection = null;
+            try {
+                final byte[] body = ("logoutRequest=" + URLEncoder.encode(this.message, "UTF-8")).getBytes(UTF8);
+                connection = (HttpURLConnection) new URL(this.url).openConnection();
+                connection.setConnectTimeout(connectTimeout);
+                connection.setReadTimeout(readTimeout);
+                connection.setInstanceFollowRedirects(false);
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setFixedLengthStreamingMode(body.length);
+
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+
+                final int status = connection.getResponseCode();
+                drain(connection);
+                if (status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_BAD_REQUEST) {
+                    sent.incrementAndGet();
+                    LOGGER.debug("send: {} answered {}", this.url, status);
+                    return true;
+                }
+                failed.incrementAndGet();
+                LOGGER.warn("send: {} answered {} to the logout request", this.url, status);
+                return false;
+            } catch (final IOException | ClassCastException ex) {
+                failed.incrementAndGet();
+                LOGGER.warn("send: logout request to {} failed: {}", this.url, ex.getMessage());
+                disconnect(connection);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Names the logout threads and keeps them from holding the JVM open.
+     */
+    private static final class LogoutThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "wsfed-logout-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
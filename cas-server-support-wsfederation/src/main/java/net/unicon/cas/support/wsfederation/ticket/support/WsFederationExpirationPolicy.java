@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.ticket.support;
+
+import net.unicon.cas.support.wsfederation.authentication.WsFederationAuthenticationMetaDataPopulator;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.TicketState;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * This class expires the tickets of a federated login when the assertion they were created from is no longer valid,
+ * so that the ticket registry does not hold them long after the session at the IdP ended.
+ *
+ * <p>Tickets expire when the delegate policy, usually the regular ticket granting ticket policy, says so, or once
+ * the NotOnOrAfter of the assertion plus a grace period has passed. The NotOnOrAfter is read from the authentication,
+ * where a {@link WsFederationAuthenticationMetaDataPopulator} put it as epoch milliseconds, so the check is a map
+ * lookup and a comparison. Tickets of other logins are left to the delegate.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationExpirationPolicy implements ExpirationPolicy {
+    private static final long serialVersionUID = 2942379126387305764L;
+
+    @NotNull
+    private ExpirationPolicy delegate;
+
+    private long gracePeriod;
+
+    @Override
+    public boolean isExpired(final TicketState ticketState) {
+        final Authentication authentication = ticketState.getAuthentication();
+        if (authentication != null) {
+            final Object notOnOrAfter =
+                    authentication.getAttributes().get(WsFederationAuthenticationMetaDataPopulator.NOT_ON_OR_AFTER);
+            if (notOnOrAfter instanceof Long
+                    && System.currentTimeMillis() >= (Long) notOnOrAfter + this.gracePeriod) {
+                return true;
+            }
+        }
+        return this.delegate.isExpired(ticketState);
+    }
+
+    /**
+     * sets the policy expiring the tickets before the assertion does.
+     *
+     * @param delegate the delegate policy
+     */
+    public void setDelegate(final ExpirationPolicy delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * sets how long tickets outlive the assertion, to absorb the clock drift with the IdP.
+     *
+     * @param gracePeriod the grace period in milliseconds
+     */
+    public void setGracePeriod(final long gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.tool;
+
+import net.unicon.cas.support.wsfederation.WsFederationUtils;
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.encryption.Decrypter;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class replays captured wresult bodies offline and reports which of them would have validated against a
+ * signing wallet, issuer, realm and tolerance.
+ *
+ * <p>The input is either a directory holding one token per file, or a file holding one token per line. Tokens are
+ * read in batches, so the whole capture is never held in memory, and each batch is verified across all cores by a
+ * fork-join pool. Usage:</p>
+ *
+ * <pre>
+ * java net.unicon.cas.support.wsfederation.tool.WsFederationTokenVerifier --cert adfs-signing.crt
+ *     --issuer http://adfs.example.com/adfs/services/trust --realm urn:federation:cas
+ *     [--key cas-encryption.key] [--tolerance 10000] [--at 2014-02-26T22:51:17Z] [--parallelism 8]
+ *     [--provider SunRsaSign] tokens.txt|tokens/
+ * </pre>
+ *
+ * <p>With {@code --key}, encrypted tokens are decrypted with the PKCS#8 private key before they are verified, so
+ * the report also gives the decrypt and verify throughput of the machine. With {@code --provider}, signatures are
+ * verified by the given JCA provider. Certificates holding RSA or EC keys are accepted.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationTokenVerifier {
+    /** the token could not be read from its file. */
+    public static final String UNREADABLE = "UNREADABLE";
+
+    /** the token is not a well formed RequestSecurityTokenResponse. */
+    public static final String UNPARSEABLE = "UNPARSEABLE";
+
+    /** the signature does not match any certificate of the wallet. */
+    public static final String INVALID_SIGNATURE = "INVALID_SIGNATURE";
+
+    /** the assertion lacks an element required by the validation. */
+    public static final String MALFORMED = "MALFORMED";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BATCH_SIZE = 4096;
+
+    private static final int SPLIT_THRESHOLD = 64;
+
+    private static final List<String> KEY_TYPES = Arrays.asList("RSA", "EC");
+
+    private List<X509Credential> signingWallet = new ArrayList<X509Credential>();
+
+    private List<Decrypter> decrypters = new ArrayList<Decrypter>();
+
+    private Set<String> audiences = new HashSet<String>();
+
+    private String issuer;
+
+    private int tolerance = 10000;
+
+    private DateTime validationTime;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private Provider signatureProvider;
+
+    /**
+     * verifies every token of a directory or newline delimited file.
+     *
+     * @param input the directory or file
+     * @return the report
+     * @throws IOException if the input cannot be read
+     */
+    public Report verify(final Path input) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        final Report report = new Report();
+        final long start = System.nanoTime();
+        try {
+            if (Files.isDirectory(input)) {
+                verifyDirectory(pool, input, report);
+            } else {
+                verifyFile(pool, input, report);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        report.elapsed = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * verifies the tokens of a directory, one token per file.
+     *
+     * @param pool   the fork-join pool
+     * @param input  the directory
+     * @param report the report to update
+     * @throws IOException if the directory cannot be listed
+     */
+    private void verifyDirectory(final ForkJoinPool pool, final Path input, final Report report) throws IOException {
+        final List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(input)) {
+            for (final Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    batch.add(file);
+                    if (batch.size() == BATCH_SIZE) {
+                        report.add(pool.invoke(new VerifyTask(batch, 0, batch.size())));
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            report.add(pool.invoke(new VerifyTask(batch, 0, batch.size())));
+        }
+    }
+
+    /**
+     * verifies the tokens of a file, one token per line.
+     *
+     * @param pool   the fork-join pool
+     * @param input  the file
+     * @param report the report to update
+     * @throws IOException if the file cannot be read
+     */
+    private void verifyFile(final ForkJoinPool pool, final Path input, final Report report) throws IOException {
+        final List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+        try (final BufferedReader reader = Files.newBufferedReader(input, UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    batch.add(line);
+                    if (batch.size() == BATCH_SIZE) {
+                        report.add(pool.invoke(new VerifyTask(batch, 0, batch.size())));
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            report.add(pool.invoke(new VerifyTask(batch, 0, batch.size())));
+        }
+    }
+
+    /**
+     * verifies a single token the way the login webflow does.
+     *
+     * @param wresult the token
+     * @return VALID or the reason the token was rejected
+     */
+    String verifyToken(final String wresult) {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult, this.decrypters);
+        if (assertion == null) {
+            return UNPARSEABLE;
+        }
+
+        if (!WsFederationUtils.validateSignature(assertion, this.signingWallet, this.signatureProvider)) {
+            return INVALID_SIGNATURE;
+        }
+
+        try {
+            final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+            if (this.validationTime != null) {
+                credential.setRetrievedOn(this.validationTime);
+            }
+            return credential.validate(this.audiences, this.issuer, this.tolerance).name();
+        } catch (final RuntimeException ex) {
+            return MALFORMED;
+        }
+    }
+
+    /**
+     * adds a certificate to the signing wallet.
+     *
+     * @param certificate the certificate
+     */
+    public void addSigningCertificate(final X509Credential certificate) {
+        this.signingWallet.add(certificate);
+    }
+
+    /**
+     * adds a private key encrypted tokens are decrypted with.
+     *
+     * @param decryptionCredential the credential holding the private key
+     */
+    public void addDecryptionKey(final Credential decryptionCredential) {
+        this.decrypters.add(WsFederationUtils.createDecrypter(decryptionCredential));
+    }
+
+    /**
+     * adds a realm the tokens may be issued to.
+     *
+     * @param realm the realm
+     */
+    public void addAudience(final String realm) {
+        this.audiences.add(realm.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * sets the expected issuer.
+     *
+     * @param issuer the IdP identifier
+     */
+    public void setIssuer(final String issuer) {
+        this.issuer = issuer;
+    }
+
+    /**
+     * sets the tolerance of the validity of the timestamp token.
+     *
+     * @param tolerance the tolerance in milliseconds
+     */
+    public void setTolerance(final int tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * sets the time the tokens are validated at, instead of the current time.
+     *
+     * @param validationTime the time, usually when the tokens were captured
+     */
+    public void setValidationTime(final DateTime validationTime) {
+        this.validationTime = validationTime;
+    }
+
+    /**
+     * sets the number of worker threads.
+     *
+     * @param parallelism the number of threads
+     */
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * sets the JCA provider verifying the signatures.
+     *
+     * @param signatureProvider the provider, or null for the one OpenSAML picks
+     */
+    public void setSignatureProvider(final Provider signatureProvider) {
+        this.signatureProvider = signatureProvider;
+    }
+
+    /**
+     * runs the verifier from the command line.
+     *
+     * @param args the command line arguments
+     * @throws IOException if the input cannot be read
+     */
+    public static void main(final String[] args) throws IOException {
+        final WsFederationTokenVerifier verifier = new WsFederationTokenVerifier();
+        Path input = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--cert".equals(arg)) {
+                    final X509Credential certificate =
+                            WsFederationUtils.getSigningCredential(new FileSystemResource(args[++i]), KEY_TYPES);
+                    if (certificate == null) {
+                        throw new IllegalArgumentException("Unable to read the certificate " + args[i]);
+                    }
+                    verifier.addSigningCertificate(certificate);
+                } else if ("--key".equals(arg)) {
+                    final Credential key = WsFederationUtils.getDecryptionCredential(new FileSystemResource(args[++i]));
+                    if (key == null) {
+                        throw new IllegalArgumentException("Unable to read the decryption key " + args[i]);
+                    }
+                    verifier.addDecryptionKey(key);
+                } else if ("--realm".equals(arg)) {
+                    verifier.addAudience(args[++i]);
+                } else if ("--issuer".equals(arg)) {
+                    verifier.setIssuer(args[++i]);
+                } else if ("--tolerance".equals(arg)) {
+                    verifier.setTolerance(Integer.parseInt(args[++i]));
+                } else if ("--at".equals(arg)) {
+                    verifier.setValidationTime(new DateTime(args[++i]).withZone(DateTimeZone.UTC));
+                } else if ("--parallelism".equals(arg)) {
+                    verifier.setParallelism(Integer.parseInt(args[++i]));
+                } else if ("--provider".equals(arg)) {
+                    final Provider provider = Security.getProvider(args[++i]);
+                    if (provider == null) {
+                        throw new IllegalArgumentException("Unknown JCA provider " + args[i]);
+                    }
+                    verifier.setSignatureProvider(provider);
+                } else if (input == null && !arg.startsWith("--")) {
+                    input = Paths.get(arg);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+            if (input == null || verifier.issuer == null || verifier.audiences.isEmpty()
+                    || verifier.signingWallet.isEmpty()) {
+                throw new IllegalArgumentException("--cert, --issuer, --realm and an input are required");
+            }
+        } catch (final IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("usage: WsFederationTokenVerifier --cert <file> [--cert <file>...] --issuer <id> "
+                    + "--realm <realm> [--realm <realm>...] [--key <file>...] [--tolerance <ms>] "
+                    + "[--at <ISO-8601 time>] [--parallelism <threads>] [--provider <name>] "
+                    + "<directory|file>");
+            System.exit(2);
+            return;
+        }
+
+        final Report report = verifier.verify(input);
+        report.print(System.out);
+        System.exit(report.getCount(WsFederationCredential.ValidationResult.VALID.name()) == report.getTotal() ? 0 : 1);
+    }
+
+    /**
+     * Verifies a range of a batch, splitting it between workers.
+     */
+    private final class VerifyTask extends RecursiveTask<Map<String, Long>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Object> batch;
+        private final int from;
+        private final int to;
+
+        /**
+         * creates a task.
+         *
+         * @param batch the tokens, or the files holding them
+         * @param from  the first index, inclusive
+         * @param to    the last index, exclusive
+         */
+        VerifyTask(final List<Object> batch, final int from, final int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, Long> compute() {
+            if (this.to - this.from > SPLIT_THRESHOLD) {
+                final int middle = (this.from + this.to) >>> 1;
+                final VerifyTask left = new VerifyTask(this.batch, this.from, middle);
+                left.fork();
+                final Map<String, Long> counts = new VerifyTask(this.batch, middle, this.to).compute();
+                merge(counts, left.join());
+                return counts;
+            }
+
+            final Map<String, Long> counts = new TreeMap<String, Long>();
+            for (int i = this.from; i < this.to; i++) {
+                increment(counts, verifyItem(this.batch.get(i)));
+            }
+            return counts;
+        }
+
+        /**
+         * verifies a token, reading it first if it is a file.
+         *
+         * @param item the token or its file
+         * @return the outcome
+         */
+        private String verifyItem(final Object item) {
+            if (item instanceof Path) {
+                try {
+                    return verifyToken(new String(Files.readAllBytes((Path) item), UTF8));
+                } catch (final IOException ex) {
+                    return UNREADABLE;
+                }
+            }
+            return verifyToken((String) item);
+        }
+    }
+
+    /**
+     * The number of tokens per outcome and the time spent verifying them.
+     */
+    public static final class Report {
+        private final Map<String, Long> counts = new TreeMap<String, Long>();
+
+        private long elapsed;
+
+        /**
+         * gets the number of tokens with an outcome.
+         *
+         * @param outcome VALID or a rejection reason
+         * @return the count
+         */
+        public long getCount(final String outcome) {
+            final Long count = this.counts.get(outcome);
+            return count != null ? count : 0;
+        }
+
+        /**
+         * gets the number of tokens per outcome.
+         *
+         * @return the counts
+         */
+        public Map<String, Long> getCounts() {
+            return Collections.unmodifiableMap(this.counts);
+        }
+
+        /**
+         * gets the number of tokens verified.
+         *
+         * @return the total
+         */
+        public long getTotal() {
+            long total = 0;
+            for (final Long count : this.counts.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * gets the throughput.
+         *
+         * @return the tokens verified per second
+         */
+        public double getThroughput() {
+            return this.elapsed == 0 ? 0 : getTotal() * 1000000000.0 / this.elapsed;
+        }
+
+        /**
+         * prints the report.
+         *
+         * @param out the stream to print to
+         */
+        public void print(final PrintStream out) {
+            for (final Map.Entry<String, Long> entry : this.counts.entrySet()) {
+                out.printf("%-20s %d%n", entry.getKey(), entry.getValue());
+            }
+            out.printf("%-20s %d%n", "TOTAL", getTotal());
+            out.printf("%-20s %.3f s (%.1f tokens/s)%n", "ELAPSED", this.elapsed / 1000000000.0, getThroughput());
+        }
+
+        /**
+         * adds the counts of a batch.
+         *
+         * @param batchCounts the counts
+         */
+        private void add(final Map<String, Long> batchCounts) {
+            merge(this.counts, batchCounts);
+        }
+    }
+
+    /**
+     * adds the counts of a map to another.
+     *
+     * @param target the map to update
+     * @param source the counts to add
+     */
+    private static void merge(final Map<String, Long> target, final Map<String, Long> source) {
+        for (final Map.Entry<String, Long> entry : source.entrySet()) {
+            final Long count = target.get(entry.getKey());
+            target.put(entry.getKey(), count != null ? count + entry.getValue() : entry.getValue());
+        }
+    }
+
+    /**
+     * increments the count of an outcome.
+     *
+     * @param counts  the counts
+     * @param outcome the outcome
+     */
+    private static void increment(final Map<String, Long> counts, final String outcome) {
+        final Long count = counts.get(outcome);
+        counts.put(outcome, count != null ? count + 1 : 1L);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.web;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.jasig.cas.CentralAuthenticationService;
+import org.jasig.cas.authentication.AuthenticationException;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.authentication.principal.WebApplicationService;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.ServicesManager;
+import org.jasig.cas.services.UnauthorizedServiceException;
+import org.jasig.cas.ticket.TicketException;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.WebUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.CookieGenerator;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This filter handles the common WS-Federation requests to /login without creating a webflow execution: the
+ * redirect of a new browser to the IdP, and the wsignin1.0 callback of a valid token. The token is validated and
+ * the redirect built by the same {@link WsFederationLoginSupport} as the webflow action.
+ *
+ * <p>Every other request is handed off to the login webflow unchanged: single sign-on with an existing ticket
+ * granting ticket, gateway requests, services that are not registered or not CAS services (the wctx only carries
+ * CAS services), the warning page, POST responses to services, and tokens that fail validation, so that the flow renders its usual error views. The action reuses the
+ * validation result of the filter instead of validating the token again. The filter requires
+ * the login state to be carried in the wctx parameter (a context codec is set) and is meant to be mapped to /login
+ * through a {@link org.springframework.web.filter.DelegatingFilterProxy}.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@ManagedResource(description = "WS-Federation login fast path")
+public final class WsFederationFastPathFilter extends OncePerRequestFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationFastPathFilter.class);
+
+    private static final String WA = "wa";
+    private static final String WSIGNIN = "wsignin1.0";
+    private static final String WHR = "whr";
+    private static final String USERNAME = "username";
+    private static final String GATEWAY = "gateway";
+    private static final String SERVICE = "service";
+    private static final String GET = "GET";
+    private static final String POST = "POST";
+
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong callbacks = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+
+    @NotNull
+    private WsFederationLoginSupport loginSupport;
+
+    @NotNull
+    private CentralAuthenticationService centralAuthenticationService;
+
+    @NotNull
+    private List<ArgumentExtractor> argumentExtractors;
+
+    @NotNull
+    private CookieGenerator ticketGrantingTicketCookieGenerator;
+
+    private CookieGenerator warnCookieGenerator;
+
+    private ServicesManager servicesManager;
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        if (this.loginSupport.isStateless()) {
+            final String wa = request.getParameter(WA);
+            if (wa == null && GET.equals(request.getMethod())) {
+                if (redirect(request, response)) {
+                    this.redirects.incrementAndGet();
+                    return;
+                }
+            } else if (WSIGNIN.equalsIgnoreCase(wa) && POST.equals(request.getMethod())) {
+                try {
+                    if (callback(request, response)) {
+                        this.callbacks.incrementAndGet();
+                        return;
+                    }
+                } catch (final RuntimeException ex) {
+                    // the webflow action renders the error, as it does for the callbacks it handles
+                    LOGGER.error("callback: " + ex.getMessage(), ex);
+                }
+            }
+        }
+
+        this.handedOff.incrementAndGet();
+        filterChain.doFilter(request, response);
+    }
+
+    /**
+     * redirects a browser without a ticket granting ticket to the IdP.
+     *
+     * @param request  the request
+     * @param response the response
+     * @return true if the request was handled, false if it must go through the webflow
+     * @throws IOException if the redirect cannot be sent
+     */
+    private boolean redirect(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        if (getCookieValue(request, this.ticketGrantingTicketCookieGenerator) != null
+                || request.getParameter(GATEWAY) != null) {
+            return false;
+        }
+
+        final WebApplicationService service = WebUtils.getService(this.argumentExtractors, request);
+        if (!this.loginSupport.isStateless(service) || service != null && !isAuthorized(service)) {
+            return false;
+        }
+
+        final String wctx = this.loginSupport.encodeContext(request, service);
+        final String authorizationUrl = this.loginSupport.getAuthorizationUrl(request.getParameter(WHR),
+                request.getParameter(USERNAME), service, wctx);
+        LOGGER.debug("redirect: {}", authorizationUrl);
+        response.sendRedirect(authorizationUrl);
+        return true;
+    }
+
+    /**
+     * validates the token of a callback, creates the ticket granting ticket and redirects to the service.
+     *
+     * @param request  the request
+     * @param response the response
+     * @return true if the request was handled, false if it must go through the webflow
+     * @throws IOException if the redirect cannot be sent
+     */
+    private boolean callback(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        if (getCookieValue(request, this.warnCookieGenerator) != null) {
+            return false;
+        }
+
+        final Map<String, String> state = this.loginSupport.decodeContext(request);
+        if (state == null || state.get(WsFederationLoginSupport.METHOD) != null) {
+            return false;
+        }
+
+        final long validationStart = System.nanoTime();
+        final WsFederationCredential credential = this.loginSupport.validateToken(request);
+        if (credential == null) {
+            return false;
+        }
+
+        final long ticketStart = System.nanoTime();
+        final String ticketGrantingTicketId;
+        try {
+            ticketGrantingTicketId = this.centralAuthenticationService.createTicketGrantingTicket(credential);
+        } catch (final AuthenticationException | TicketException ex) {
+            LOGGER.warn("callback: no ticket granting ticket for {}: {}", credential.getId(), ex.getMessage());
+            return false;
+        }
+        this.loginSupport.loggedIn(credential, ticketStart - validationStart, System.nanoTime() - ticketStart);
+
+        final String previous = getCookieValue(request, this.ticketGrantingTicketCookieGenerator);
+        if (previous != null && !previous.equals(ticketGrantingTicketId)) {
+            this.centralAuthenticationService.destroyTicketGrantingTicket(previous);
+        }
+        this.ticketGrantingTicketCookieGenerator.addCookie(response, ticketGrantingTicketId);
+
+        final String serviceId = state.get(WsFederationLoginSupport.SERVICE);
+        if (serviceId == null) {
+            response.sendRedirect(request.getRequestURI());
+            return true;
+        }
+
+        // only CAS services are carried in the wctx
+        final WebApplicationService service = new SimpleWebApplicationServiceImpl(serviceId);
+        try {
+            final String serviceTicketId = this.centralAuthenticationService.grantServiceTicket(
+                    ticketGrantingTicketId, service);
+            response.sendRedirect(service.getResponse(serviceTicketId).getUrl());
+        } catch (final TicketException | UnauthorizedServiceException ex) {
+            // let the webflow render the error with the new ticket granting ticket
+            LOGGER.warn("callback: no service ticket for {}: {}", serviceId, ex.getMessage());
+            response.sendRedirect(request.getRequestURI() + '?' + SERVICE + '='
+                    + URLEncoder.encode(serviceId, "UTF-8"));
+        }
+        return true;
+    }
+
+    /**
+     * tells whether a service may use CAS, as the serviceAuthorizationCheck of the webflow does.
+     *
+     * @param service the service
+     * @return true if no services manager is set or the service is registered and enabled
+     */
+    private boolean isAuthorized(final WebApplicationService service) {
+        if (this.servicesManager == null) {
+            return true;
+        }
+        final RegisteredService registeredService = this.servicesManager.findServiceBy(service);
+        return registeredService != null && registeredService.isEnabled();
+    }
+
+    /**
+     * gets the value of the cookie of a generator.
+     *
+     * @param request         the request
+     * @param cookieGenerator the cookie generator, may be null
+     * @return the value, or null if the request does not have the cookie
+     */
+    private static String getCookieValue(final HttpServletRequest request, final CookieGenerator cookieGenerator) {
+        final Cookie[] cookies = request.getCookies();
+        if (cookieGenerator == null || cookies == null) {
+            return null;
+        }
+        for (final Cookie cookie : cookies) {
+            if (cookie.getName().equals(cookieGenerator.getCookieName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * gets the number of browsers redirected to the IdP by the filter.
+     *
+     * @return the redirect count
+     */
+    @ManagedAttribute(description = "Browsers redirected to the IdP without the webflow")
+    public long getRedirectCount() {
+        return this.redirects.get();
+    }
+
+    /**
+     * gets the number of callbacks handled by the filter.
+     *
+     * @return the callback count
+     */
+    @ManagedAttribute(description = "Callbacks handled without the webflow")
+    public long getCallbackCount() {
+        return this.callbacks.get();
+    }
+
+    /**
+     * gets the number of requests handed off to the webflow.
+     *
+     * @return the hand off count
+     */
+    @ManagedAttribute(description = "Requests handed off to the webflow")
+    public long getHandedOffCount() {
+        return this.handedOff.get();
+    }
+
+    /**
+     * sets the login steps shared with the webflow action.
+     *
+     * @param loginSupport the login support
+     */
+    public void setLoginSupport(final WsFederationLoginSupport loginSupport) {
+        this.loginSupport = loginSupport;
+    }
+
+    /**
+     * set the CAS config.
+     *
+     * @param centralAuthenticationService the cas config
+     */
+    public void setCentralAuthenticationService(final CentralAuthenticationService centralAuthenticationService) {
+        this.centralAuthenticationService = centralAuthenticationService;
+    }
+
+    /**
+     * sets the argument extractors of the login webflow, which build the service of a request.
+     *
+     * @param argumentExtractors the argument extractors
+     */
+    public void setArgumentExtractors(final List<ArgumentExtractor> argumentExtractors) {
+        this.argumentExtractors = argumentExtractors;
+    }
+
+    /**
+     * sets the generator of the ticket granting ticket cookie.
+     *
+     * @param ticketGrantingTicketCookieGenerator the cookie generator
+     */
+    public void setTicketGrantingTicketCookieGenerator(final CookieGenerator ticketGrantingTicketCookieGenerator) {
+        this.ticketGrantingTicketCookieGenerator = ticketGrantingTicketCookieGenerator;
+    }
+
+    /**
+     * sets the generator of the warning cookie. Callbacks of browsers with this cookie go through the webflow,
+     * which shows the warning page.
+     *
+     * @param warnCookieGenerator the cookie generator
+     */
+    public void setWarnCookieGenerator(final CookieGenerator warnCookieGenerator) {
+        this.warnCookieGenerator = warnCookieGenerator;
+    }
+
+    /**
+     * sets the services manager. When set, redirects for services that are not registered go through the webflow,
+     * which shows the unauthorized service error.
+     *
+     * @param servicesManager the services manager
+     */
+    public void setServicesManager(final ServicesManager servicesManager) {
+        this.servicesManager = servicesManager;
+    }
+}
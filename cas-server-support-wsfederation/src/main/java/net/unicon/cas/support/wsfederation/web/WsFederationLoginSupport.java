@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.web;
+
+import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import net.unicon.cas.support.wsfederation.WsFederationConfigurationRegistry;
+import net.unicon.cas.support.wsfederation.WsFederationContextCodec;
+import net.unicon.cas.support.wsfederation.WsFederationRealmRegistry;
+import net.unicon.cas.support.wsfederation.WsFederationRoundTripMonitor;
+import net.unicon.cas.support.wsfederation.WsFederationUtils;
+import net.unicon.cas.support.wsfederation.audit.WsFederationAuditTrail;
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.opensaml.saml1.core.Assertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.constraints.NotNull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class holds the steps of a WS-Federation login shared by the webflow action and the fast path filter:
+ * validating the token returned by the IdP, building the redirect to the IdP and packing the login state in the
+ * wctx parameter. When a {@link WsFederationRoundTripMonitor} is set, the round trip through the IdP is measured;
+ * when a {@link WsFederationAuditTrail} is set, successful logins are audited.
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public final class WsFederationLoginSupport {
+    /** the name of the service entry of the login state. */
+    public static final String SERVICE = "service";
+
+    /** the name of the theme entry of the login state. */
+    public static final String THEME = "theme";
+
+    /** the name of the locale entry of the login state. */
+    public static final String LOCALE = "locale";
+
+    /** the name of the method entry of the login state. */
+    public static final String METHOD = "method";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationLoginSupport.class);
+
+    private static final String WCTX = "wctx";
+    private static final String WRESULT = "wresult";
+    private static final String STATE_ATTRIBUTE = WsFederationLoginSupport.class.getName() + ".state";
+    private static final String CREDENTIAL_ATTRIBUTE = WsFederationLoginSupport.class.getName() + ".credential";
+
+    @NotNull
+    private WsFederationConfigurationRegistry configurationRegistry;
+
+    @NotNull
+    private WsFederationRealmRegistry realmRegistry = new WsFederationRealmRegistry();
+
+    private WsFederationContextCodec contextCodec;
+
+    private WsFederationRoundTripMonitor roundTripMonitor;
+
+    private WsFederationAuditTrail auditTrail;
+
+    /**
+     * validates the token of a callback, once per request.
+     *
+     * @param request the callback request
+     * @return the credential, or null if the token is blank, unsigned by a trusted IdP or no longer valid
+     * @see #validateToken(String)
+     */
+    public WsFederationCredential validateToken(final HttpServletRequest request) {
+        // a callback handed off by the fast path filter to the webflow is validated once
+        final Object validated = request.getAttribute(CREDENTIAL_ATTRIBUTE);
+        if (validated != null) {
+            return validated instanceof WsFederationCredential ? (WsFederationCredential) validated : null;
+        }
+
+        final WsFederationCredential credential = validateToken(request.getParameter(WRESULT));
+        request.setAttribute(CREDENTIAL_ATTRIBUTE, credential != null ? credential : Boolean.FALSE);
+        return credential;
+    }
+
+    /**
+     * validates the token returned by the IdP and applies the attribute mutator of the IdP to it.
+     *
+     * @param wresult the wresult parameter of the callback
+     * @return the credential, or null if the token is blank, unsigned by a trusted IdP or no longer valid
+     */
+    public WsFederationCredential validateToken(final String wresult) {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult, this.configurationRegistry);
+
+        // find the IdP that issued the token, and read its configuration once for this login
+        final WsFederationConfiguration configuration = assertion == null ? null
+                : this.configurationRegistry.getConfigurationForIssuer(assertion.getIssuer());
+        if (assertion != null && configuration == null) {
+            LOGGER.warn("No IdP is configured for issuer {}", assertion.getIssuer());
+        }
+        final WsFederationConfiguration.Snapshot snapshot = configuration == null ? null
+                : configuration.getSnapshot();
+
+        //Validate the signature
+        if (snapshot == null || !WsFederationUtils.validateSignature(assertion, snapshot.getSigningCertificates(),
+                snapshot.getSignatureProvider())) {
+            LOGGER.error("WS Requested Security Token is blank or the signature is not valid.");
+            return null;
+        }
+
+        final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+        if (this.roundTripMonitor != null && credential != null && credential.getIssuedOn() != null) {
+            this.roundTripMonitor.issued(credential.getIssuedOn().getMillis());
+        }
+        if (credential == null || !credential.isValid(snapshot.getAudiences(this.realmRegistry.getAudiences()),
+                snapshot.getIdentityProviderIdentifier(), snapshot.getTolerance())) {
+            LOGGER.warn("SAML assertions are blank or no longer valid.");
+            return null;
+        }
+
+        //Give the library user a chance to change the attributes as necessary
+        if (snapshot.getAttributeMutator() != null) {
+            snapshot.getAttributeMutator().modifyAttributes(credential.getAttributes());
+        }
+        return credential;
+    }
+
+    /**
+     * logs a successful login, and queues its record when an audit trail is set.
+     *
+     * @param credential     the validated credential
+     * @param validationTime the time spent validating the token, in nanoseconds
+     * @param ticketTime     the time spent creating the ticket granting ticket, in nanoseconds
+     */
+    public void loggedIn(final WsFederationCredential credential, final long validationTime, final long ticketTime) {
+        LOGGER.info("Token {} of {} validated and ticket granting ticket created", credential.getId(),
+                credential.getIssuer());
+        LOGGER.debug("Credential: {}", credential);
+
+        if (this.auditTrail != null) {
+            final WsFederationConfiguration configuration =
+                    this.configurationRegistry.getConfigurationForIssuer(credential.getIssuer());
+            final Object principal = configuration == null || credential.getAttributes() == null ? null
+                    : credential.getAttributes().get(configuration.getIdentityAttribute());
+            this.auditTrail.record(credential, principal, validationTime, ticketTime);
+        }
+    }
+
+    /**
+     * builds the url redirecting the browser to the IdP.
+     *
+     * @param whr      the home realm requested by the browser, may be null
+     * @param username the username typed by the user, may be null
+     * @param service  the service the user is logging in to, may be null
+     * @param wctx     the wctx value, may be null
+     * @return the authorization url
+     */
+    public String getAuthorizationUrl(final String whr, final String username, final Service service,
+                                      final String wctx) {
+        final WsFederationConfiguration.Snapshot snapshot =
+                this.configurationRegistry.getConfigurationForRedirect(whr, username).getSnapshot();
+
+        final String realm = this.realmRegistry.resolveRealm(service, snapshot.getRelyingPartyIdentifier());
+
+        final String authorizationUrl = snapshot.getAuthorizationUrl(realm);
+        return wctx == null ? authorizationUrl : authorizationUrl + '&' + WCTX + '=' + wctx;
+    }
+
+    /**
+     * packs the service and the theme, locale and method parameters into a wctx value.
+     *
+     * @param request the request
+     * @param service the CAS service, may be null
+     * @see #isStateless(Service)
+     * @return the wctx value
+     */
+    public String encodeContext(final HttpServletRequest request, final Service service) {
+        final Map<String, String> state = new LinkedHashMap<String, String>();
+        if (service != null) {
+            state.put(SERVICE, service.getId());
+        }
+        saveRequestParameter(request, state, THEME);
+        saveRequestParameter(request, state, LOCALE);
+        saveRequestParameter(request, state, METHOD);
+        if (this.roundTripMonitor != null) {
+            this.roundTripMonitor.redirected(state);
+        }
+        return this.contextCodec.encode(state);
+    }
+
+    /**
+     * unpacks the login state from the wctx value returned by the IdP.
+     *
+     * @param request the callback request
+     * @return the state entries, or null if the wctx is missing or not valid
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> decodeContext(final HttpServletRequest request) {
+        // a callback handed off by the fast path filter to the webflow is decoded once
+        final Object decoded = request.getAttribute(STATE_ATTRIBUTE);
+        if (decoded != null) {
+            return (Map<String, String>) decoded;
+        }
+
+        final Map<String, String> state = this.contextCodec.decode(request.getParameter(WCTX));
+        if (state != null) {
+            request.setAttribute(STATE_ATTRIBUTE, state);
+            if (this.roundTripMonitor != null) {
+                this.roundTripMonitor.returned(state);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * tells whether the login state is carried in the wctx parameter instead of the web session.
+     *
+     * @return true if a context codec is set
+     */
+    public boolean isStateless() {
+        return this.contextCodec != null;
+    }
+
+    /**
+     * tells whether the state of a login to a service is carried in the wctx parameter. Only CAS services can be
+     * rebuilt from their id on the callback, so logins to other services, such as SAML 1.1 TARGET ones, keep their
+     * state in the web session.
+     *
+     * @param service the service, may be null
+     * @return true if a context codec is set and the service is a CAS service or null
+     */
+    public boolean isStateless(final Service service) {
+        return isStateless() && (service == null || service instanceof SimpleWebApplicationServiceImpl);
+    }
+
+    /**
+     * sets the WsFederation configuration when a single IdP is trusted.
+     *
+     * @param configuration the configuration
+     */
+    public void setConfiguration(final WsFederationConfiguration configuration) {
+        this.configurationRegistry = new WsFederationConfigurationRegistry(configuration);
+    }
+
+    /**
+     * sets the WsFederation configurations when several IdPs are trusted.
+     *
+     * @param configurationRegistry the configuration registry
+     */
+    public void setConfigurationRegistry(final WsFederationConfigurationRegistry configurationRegistry) {
+        this.configurationRegistry = configurationRegistry;
+    }
+
+    /**
+     * sets the registry mapping services to the realms presented to the IdP.
+     *
+     * @param realmRegistry the realm registry
+     */
+    public void setRealmRegistry(final WsFederationRealmRegistry realmRegistry) {
+        this.realmRegistry = realmRegistry;
+    }
+
+    /**
+     * sets the codec used to carry the login state in the wctx parameter instead of the web session.
+     *
+     * @param contextCodec the context codec
+     */
+    public void setContextCodec(final WsFederationContextCodec contextCodec) {
+        this.contextCodec = contextCodec;
+    }
+
+    /**
+     * sets the monitor measuring the round trip through the IdP. It needs the context codec.
+     *
+     * @param roundTripMonitor the round trip monitor
+     */
+    public void setRoundTripMonitor(final WsFederationRoundTripMonitor roundTripMonitor) {
+        this.roundTripMonitor = roundTripMonitor;
+    }
+
+    /**
+     * sets the audit trail recording the successful logins.
+     *
+     * @param auditTrail the audit trail
+     */
+    public void setAuditTrail(final WsFederationAuditTrail auditTrail) {
+        this.auditTrail = auditTrail;
+    }
+
+    /**
+     * Save a request parameter in the wctx state.
+     *
+     * @param request the request
+     * @param state   the state
+     * @param name    the parameter name
+     */
+    private static void saveRequestParameter(final HttpServletRequest request, final Map<String, String> state,
+                                             final String name) {
+        final String value = request.getParameter(name);
+        if (value != null) {
+            state.put(name, value);
+        }
+    }
+}
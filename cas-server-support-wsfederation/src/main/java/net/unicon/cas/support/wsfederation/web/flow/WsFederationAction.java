@@ -17,16 +17,23 @@
 package net.unicon.cas.support.wsfederation.web.flow;
 
 import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
-import net.unicon.cas.support.wsfederation.WsFederationUtils;
+import net.unicon.cas.support.wsfederation.WsFederationConfigurationRegistry;
+import net.unicon.cas.support.wsfederation.WsFederationContextCodec;
+import net.unicon.cas.support.wsfederation.WsFederationRealmRegistry;
+import net.unicon.cas.support.wsfederation.WsFederationRoundTripMonitor;
+import net.unicon.cas.support.wsfederation.audit.WsFederationAuditTrail;
 import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import net.unicon.cas.support.wsfederation.web.WsFederationLoginSupport;
 import org.apache.commons.lang.StringUtils;
 import org.jasig.cas.CentralAuthenticationService;
 import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.logout.LogoutRequest;
 import org.jasig.cas.ticket.TicketException;
 import org.jasig.cas.web.support.WebUtils;
-import org.opensaml.saml1.core.Assertion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.util.CookieGenerator;
 import org.springframework.webflow.action.AbstractAction;
 import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
@@ -34,6 +41,8 @@ import org.springframework.webflow.execution.RequestContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import javax.validation.constraints.NotNull;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class represents an action in the webflow to retrieve WsFederation information on the callback url which is
@@ -44,21 +53,27 @@ import javax.validation.constraints.NotNull;
  */
 public final class WsFederationAction extends AbstractAction {
 
-    private static final String LOCALE = "locale";
-    private static final String METHOD = "method";
+    private static final String LOCALE = WsFederationLoginSupport.LOCALE;
+    private static final String METHOD = WsFederationLoginSupport.METHOD;
     private static final String PROVIDERURL = "WsFederationIdentityProviderUrl";
-    private static final String QUERYSTRING = "?wa=wsignin1.0&wtrealm=";
-    private static final String SERVICE = "service";
-    private static final String THEME = "theme";
+    private static final String SERVICE = WsFederationLoginSupport.SERVICE;
+    private static final String THEME = WsFederationLoginSupport.THEME;
+    private static final String USERNAME = "username";
     private static final String WA = "wa";
+    private static final String WHR = "whr";
     private static final String WRESULT = "wresult";
     private static final String WSIGNIN = "wsignin1.0";
+    private static final String WSIGNOUT = "wsignout1.0";
+    private static final String WSIGNOUTCLEANUP = "wsignoutcleanup1.0";
+    private static final String SIGNOUT = "signout";
     private final Logger logger = LoggerFactory.getLogger(WsFederationAction.class);
     @NotNull
-    private WsFederationConfiguration configuration;
+    private CentralAuthenticationService centralAuthenticationService;
 
     @NotNull
-    private CentralAuthenticationService centralAuthenticationService;
+    private WsFederationLoginSupport loginSupport = new WsFederationLoginSupport();
+
+    private CookieGenerator ticketGrantingTicketCookieGenerator;
 
     /**
      * Executes the webflow action.
@@ -72,37 +87,40 @@ public final class WsFederationAction extends AbstractAction {
 
         try {
             final HttpServletRequest request = WebUtils.getHttpServletRequest(context);
-            final HttpSession session = request.getSession();
 
             final String wa = request.getParameter(WA);
 
+            // it's a sign out requested by the IdP
+            if (WSIGNOUT.equalsIgnoreCase(wa) || WSIGNOUTCLEANUP.equalsIgnoreCase(wa)) {
+                return signOut(context);
+            }
+
             // it's an authentication
             if (StringUtils.isNotBlank(wa) && wa.equalsIgnoreCase(WSIGNIN)) {
                 final String wresult = request.getParameter(WRESULT);
                 logger.debug("wresult : {}", wresult);
 
-                // create credentials
-                final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+                // read the wctx on arrival, so the time spent validating is not counted as time at the IdP
+                final Map<String, String> state = this.loginSupport.isStateless()
+                        ? this.loginSupport.decodeContext(request) : null;
 
-                //Validate the signature
-                if (assertion != null && WsFederationUtils.validateSignature(assertion, configuration.getSigningCertificates())) {
-                    final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
-
-                    if (credential != null && credential.isValid(configuration.getRelyingPartyIdentifier(),
-                            configuration.getIdentityProviderIdentifier(),
-                            configuration.getTolerance())) {
+                // validate the token and create credentials
+                final long validationStart = System.nanoTime();
+                final WsFederationCredential credential = this.loginSupport.validateToken(request);
+                final long validationTime = System.nanoTime() - validationStart;
+                if (credential == null) {
+                    return error();
+                }
 
-                        //Give the library user a chance to change the attributes as necessary
-                        if (configuration.getAttributeMutator() != null) {
-                            configuration.getAttributeMutator().modifyAttributes(credential.getAttributes());
-                        }
-                    } else {
-                        logger.warn("SAML assertions are blank or no longer valid.");
-                        return error();
+                // retrieve parameters from the wctx or the web session
+                if (state != null) {
+                    restoreContext(context, request, state);
+                } else {
+                    if (this.loginSupport.isStateless()) {
+                        logger.debug("wctx is missing or not valid; restoring the service from the web session");
                     }
-
-                    // retrieve parameters from web session
                     try {
+                        final HttpSession session = request.getSession();
                         final Service service = (Service) session.getAttribute(SERVICE);
                         context.getFlowScope().put(SERVICE, service);
                         restoreRequestAttribute(request, session, THEME);
@@ -112,40 +130,42 @@ public final class WsFederationAction extends AbstractAction {
                     } catch (final Exception ex) {
                         logger.warn("Session is most-likely empty: {}", ex.getMessage());
                     }
+                }
 
-                    try {
-                        WebUtils.putTicketGrantingTicketInRequestScope(context, this.centralAuthenticationService
-                                .createTicketGrantingTicket(credential));
-
-                        logger.info("Token validated and new {} created: {}", credential.getClass().getName(), credential);
-                        return success();
+                try {
+                    final long ticketStart = System.nanoTime();
+                    WebUtils.putTicketGrantingTicketInRequestScope(context, this.centralAuthenticationService
+                            .createTicketGrantingTicket(credential));
 
-                    } catch (final TicketException e) {
-                        logger.error(e.getMessage(), e);
-                        return error();
-                    }
+                    this.loginSupport.loggedIn(credential, validationTime, System.nanoTime() - ticketStart);
+                    return success();
 
-                } else {
-                    logger.error("WS Requested Security Token is blank or the signature is not valid.");
+                } catch (final TicketException e) {
+                    logger.error(e.getMessage(), e);
                     return error();
                 }
 
             } else { // no authentication : go to login page
                 logger.debug("Preparing to redirect to the IdP");
 
-                // save parameters in web session
+                // save parameters in the wctx or the web session
                 final Service service = (Service) context.getFlowScope().get(SERVICE);
-                if (service != null) {
-                    session.setAttribute(SERVICE, service);
+                String wctx = null;
+                if (this.loginSupport.isStateless(service)) {
+                    wctx = this.loginSupport.encodeContext(request, service);
+                } else {
+                    final HttpSession session = request.getSession();
+                    if (service != null) {
+                        session.setAttribute(SERVICE, service);
+                    }
+                    saveRequestParameter(request, session, THEME);
+                    saveRequestParameter(request, session, LOCALE);
+                    saveRequestParameter(request, session, METHOD);
                 }
-                saveRequestParameter(request, session, THEME);
-                saveRequestParameter(request, session, LOCALE);
-                saveRequestParameter(request, session, METHOD);
 
                 final String key = PROVIDERURL;
-                final String authorizationUrl = this.configuration.getIdentityProviderUrl()
-                        + QUERYSTRING
-                        + this.configuration.getRelyingPartyIdentifier();
+                final String authorizationUrl = this.loginSupport.getAuthorizationUrl(request.getParameter(WHR),
+                        request.getParameter(USERNAME), service, wctx);
 
                 logger.debug("{} -> {}", key, authorizationUrl);
                 context.getFlowScope().put(key, authorizationUrl);
@@ -161,6 +181,50 @@ public final class WsFederationAction extends AbstractAction {
 
     }
 
+    /**
+     * Destroys the ticket granting ticket of the browser and removes its cookie. The logout of the services of the
+     * ticket is sent by the CAS logout manager; with an asynchronous HttpClient the IdP does not wait for it.
+     *
+     * @param context the context
+     * @return the signout event
+     */
+    private Event signOut(final RequestContext context) {
+        final String ticketGrantingTicketId = WebUtils.getTicketGrantingTicketId(context);
+        if (ticketGrantingTicketId != null) {
+            final List<LogoutRequest> logoutRequests =
+                    this.centralAuthenticationService.destroyTicketGrantingTicket(ticketGrantingTicketId);
+            WebUtils.putLogoutRequests(context, logoutRequests);
+            logger.info("IdP sign out destroyed {} and notified {} services", ticketGrantingTicketId,
+                    logoutRequests == null ? 0 : logoutRequests.size());
+        } else {
+            logger.debug("IdP sign out without a ticket granting ticket");
+        }
+
+        if (this.ticketGrantingTicketCookieGenerator != null) {
+            this.ticketGrantingTicketCookieGenerator.removeCookie(WebUtils.getHttpServletResponse(context));
+        }
+        return result(SIGNOUT);
+    }
+
+    /**
+     * Restores the service and request attributes from the wctx value returned by the IdP.
+     *
+     * @param context the context
+     * @param request the request
+     * @param state   the state decoded from the wctx
+     */
+    private void restoreContext(final RequestContext context, final HttpServletRequest request,
+                                final Map<String, String> state) {
+        // only CAS services are carried in the wctx
+        final String serviceId = state.get(SERVICE);
+        if (serviceId != null) {
+            context.getFlowScope().put(SERVICE, new SimpleWebApplicationServiceImpl(serviceId));
+        }
+        request.setAttribute(THEME, state.get(THEME));
+        request.setAttribute(LOCALE, state.get(LOCALE));
+        request.setAttribute(METHOD, state.get(METHOD));
+    }
+
     /**
      * Restore an attribute in web session as an attribute in request.
      *
@@ -197,11 +261,75 @@ public final class WsFederationAction extends AbstractAction {
     }
 
     /**
-     * sets the WsFederation configuration.
+     * sets the WsFederation configuration when a single IdP is trusted.
      *
      * @param configuration the configuration
      */
     public void setConfiguration(final WsFederationConfiguration configuration) {
-        this.configuration = configuration;
+        this.loginSupport.setConfiguration(configuration);
+    }
+
+    /**
+     * sets the codec used to carry the flow state in the wctx parameter instead of the web session.
+     *
+     * @param contextCodec the context codec
+     */
+    public void setContextCodec(final WsFederationContextCodec contextCodec) {
+        this.loginSupport.setContextCodec(contextCodec);
+    }
+
+    /**
+     * sets the monitor measuring the round trip through the IdP. It needs the context codec.
+     *
+     * @param roundTripMonitor the round trip monitor
+     */
+    public void setRoundTripMonitor(final WsFederationRoundTripMonitor roundTripMonitor) {
+        this.loginSupport.setRoundTripMonitor(roundTripMonitor);
+    }
+
+    /**
+     * sets the audit trail recording the successful logins.
+     *
+     * @param auditTrail the audit trail
+     */
+    public void setAuditTrail(final WsFederationAuditTrail auditTrail) {
+        this.loginSupport.setAuditTrail(auditTrail);
+    }
+
+    /**
+     * sets the generator of the ticket granting ticket cookie, removed when the IdP signs the user out.
+     *
+     * @param ticketGrantingTicketCookieGenerator the cookie generator
+     */
+    public void setTicketGrantingTicketCookieGenerator(final CookieGenerator ticketGrantingTicketCookieGenerator) {
+        this.ticketGrantingTicketCookieGenerator = ticketGrantingTicketCookieGenerator;
+    }
+
+    /**
+     * sets the registry mapping services to the realms presented to the IdP.
+     *
+     * @param realmRegistry the realm registry
+     */
+    public void setRealmRegistry(final WsFederationRealmRegistry realmRegistry) {
+        this.loginSupport.setRealmRegistry(realmRegistry);
+    }
+
+    /**
+     * sets the WsFederation configurations when several IdPs are trusted.
+     *
+     * @param configurationRegistry the configuration registry
+     */
+    public void setConfigurationRegistry(final WsFederationConfigurationRegistry configurationRegistry) {
+        this.loginSupport.setConfigurationRegistry(configurationRegistry);
+    }
+
+    /**
+     * sets the login steps shared with the fast path filter. This replaces the configuration, realm registry and
+     * context codec set on this action.
+     *
+     * @param loginSupport the login support
+     */
+    public void setLoginSupport(final WsFederationLoginSupport loginSupport) {
+        this.loginSupport = loginSupport;
     }
 }
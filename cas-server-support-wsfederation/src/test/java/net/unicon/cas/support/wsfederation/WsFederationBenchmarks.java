@@ -0,0 +1,566 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import net.unicon.cas.support.wsfederation.web.WsFederationFastPathFilter;
+import net.unicon.cas.support.wsfederation.web.WsFederationLoginSupport;
+import net.unicon.cas.support.wsfederation.web.flow.WsFederationAction;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.CasArgumentExtractor;
+import org.jasig.cas.web.support.WebUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.util.CookieGenerator;
+import org.springframework.webflow.action.AbstractAction;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.conversation.impl.SessionBindingConversationManager;
+import org.springframework.webflow.definition.registry.FlowDefinitionRegistryImpl;
+import org.springframework.webflow.engine.ActionState;
+import org.springframework.webflow.engine.EndState;
+import org.springframework.webflow.engine.Flow;
+import org.springframework.webflow.engine.Transition;
+import org.springframework.webflow.engine.WildcardTransitionCriteria;
+import org.springframework.webflow.engine.impl.FlowExecutionImplFactory;
+import org.springframework.webflow.engine.support.DefaultTargetStateResolver;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.repository.impl.DefaultFlowExecutionRepository;
+import org.springframework.webflow.execution.repository.snapshot.SerializedFlowExecutionSnapshotFactory;
+import org.springframework.webflow.executor.FlowExecutor;
+import org.springframework.webflow.executor.FlowExecutorImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs the throughput of the hot paths of the library. The class name does not match the test includes of surefire,
+ * so only the {@code stress} profile runs it:
+ * <pre>
+ *     mvn -Pstress test -Dbenchmark.iterations=10000
+ * </pre>
+ * The number of iterations of each benchmark is read from the {@code wsfed.benchmark.iterations} system property.
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/applicationContext.xml")
+public class WsFederationBenchmarks {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationBenchmarks.class);
+
+    private static final int ITERATIONS = Integer.getInteger("wsfed.benchmark.iterations", 1000);
+
+    private static final String IDP_URL = "https://adfs.example.com/adfs/ls/";
+
+    private static final String SERVICE = "https://app.example.org/";
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String, String> testTokens;
+
+    /**
+     * Logs the encode and decode throughput of the signed and the encrypted wctx.
+     */
+    @Test
+    public void testContextCodec() {
+        final Map<String, String> state = new LinkedHashMap<String, String>();
+        state.put("service", "https://apps.example.com/app1?x=1&y=2");
+        state.put("locale", "fr");
+
+        final WsFederationContextCodec codec = new WsFederationContextCodec();
+        codec.setSigningKey("0123456789abcdef0123456789abcdef");
+        benchmarkContextCodec("signed", codec, state);
+
+        codec.setEncryptionKey("AAECAwQFBgcICQoLDA0ODw==");
+        benchmarkContextCodec("encrypted", codec, state);
+    }
+
+    /**
+     * Logs the serialization throughput and size of credentials of users in more and more groups.
+     *
+     * @throws Exception if a credential cannot be serialized
+     */
+    @Test
+    public void testCredential() throws Exception {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(testTokens.get("goodToken"));
+
+        for (final int groups : new int[] {0, 100, 1000}) {
+            final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+            final List<String> values = new ArrayList<String>();
+            for (int i = 0; i < groups; i++) {
+                values.add("example.com\\Group " + i);
+            }
+            credential.getAttributes().put("Group", values);
+
+            final byte[] serialized = serialize(credential);
+            assertEquals("testCredential() - " + groups + " groups", credential.getAttributes(),
+                    ((WsFederationCredential) deserialize(serialized)).getAttributes());
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                serialize(credential);
+            }
+            final long writeTime = Math.max(1, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                deserialize(serialized);
+            }
+            final long readTime = Math.max(1, System.nanoTime() - start);
+
+            LOGGER.info("testCredential: {} groups, {} bytes: {} writes and {} reads per second", groups,
+                    serialized.length, ITERATIONS * 1000000000L / writeTime, ITERATIONS * 1000000000L / readTime);
+        }
+    }
+
+    /**
+     * Compares the redirect to the IdP through a webflow execution, as the login flow does it, with the fast path.
+     * The flow only holds the WS-Federation action, so the difference is the cost of the webflow machinery alone.
+     *
+     * @throws Exception if a redirect fails
+     */
+    @Test
+    public void testFastPathFilter() throws Exception {
+        final WsFederationLoginSupport loginSupport = createLoginSupport(true);
+
+        final WsFederationAction action = new WsFederationAction();
+        action.setLoginSupport(loginSupport);
+        final FlowExecutor flowExecutor = createFlowExecutor(action);
+
+        final CookieGenerator tgcGenerator = new CookieGenerator();
+        tgcGenerator.setCookieName("CASTGC");
+        final WsFederationFastPathFilter filter = new WsFederationFastPathFilter();
+        filter.setLoginSupport(loginSupport);
+        filter.setTicketGrantingTicketCookieGenerator(tgcGenerator);
+        filter.setArgumentExtractors(Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor()));
+
+        final MockHttpServletResponse flowed = flowLogin(flowExecutor);
+        final MockHttpServletResponse fast = fastLogin(filter);
+        assertEquals("testFastPathFilter() - same redirect",
+                flowed.getRedirectedUrl().substring(0, IDP_URL.length()),
+                fast.getRedirectedUrl().substring(0, IDP_URL.length()));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(flowLogin(flowExecutor).getRedirectedUrl());
+        }
+        final long flowTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(fastLogin(filter).getRedirectedUrl());
+        }
+        final long fastTime = System.nanoTime() - start;
+        assertEquals("testFastPathFilter() - all through the fast path", ITERATIONS + 1, filter.getRedirectCount());
+        assertEquals("testFastPathFilter() - none handed off", 0, filter.getHandedOffCount());
+
+        LOGGER.info("testFastPathFilter: {} redirects, webflow {} us/request, fast path {} us/request", ITERATIONS,
+                TimeUnit.NANOSECONDS.toMicros(flowTime / ITERATIONS),
+                TimeUnit.NANOSECONDS.toMicros(fastTime / ITERATIONS));
+    }
+
+    /**
+     * Measures the throughput of parsing, decrypting and verifying a token, against parsing and verifying the same
+     * token unencrypted, on one thread and on every core.
+     *
+     * @throws Exception if a token cannot be encrypted or a thread fails
+     */
+    @Test
+    public void testDecryption() throws Exception {
+        final String plainToken = testTokens.get("goodToken");
+        final String encryptedToken = WsFederationDecryptionTests.encrypt(plainToken);
+
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderIdentifier(wsFedConfig.getIdentityProviderIdentifier());
+        configuration.setSigningCertificateFiles(wsFedConfig.getSigningCertificateFiles());
+        configuration.setEncryptionPrivateKeyFile(new ClassPathResource("cas-encryption.key"));
+        final WsFederationConfigurationRegistry registry = new WsFederationConfigurationRegistry(configuration);
+
+        final double plain = measureDecryption(plainToken, registry, 1);
+        final double encrypted = measureDecryption(encryptedToken, registry, 1);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final double encryptedParallel = measureDecryption(encryptedToken, registry, cores);
+
+        LOGGER.info("testDecryption: verify {} tokens/s, decrypt+verify {} tokens/s on one thread, {} tokens/s on {} "
+                + "threads", Math.round(plain), Math.round(encrypted), Math.round(encryptedParallel), cores);
+    }
+
+    /**
+     * Compares the redirect to the IdP when the login state is carried in the wctx parameter with the redirect when
+     * it is kept in the web session, which a cluster has to replicate or pin to one node. Both go through the same
+     * webflow, so the difference is the cost of the codec against the cost of the session state.
+     *
+     * @throws Exception if a redirect fails
+     */
+    @Test
+    public void testRedirectState() throws Exception {
+        final WsFederationAction sessionFreeAction = new WsFederationAction();
+        sessionFreeAction.setLoginSupport(createLoginSupport(true));
+        final FlowExecutor sessionFree = createFlowExecutor(sessionFreeAction);
+
+        final WsFederationAction sessionBackedAction = new WsFederationAction();
+        sessionBackedAction.setLoginSupport(createLoginSupport(false));
+        final FlowExecutor sessionBacked = createFlowExecutor(sessionBackedAction);
+
+        final MockHttpServletRequest sessionFreeRequest = loginRequest();
+        final String redirect = flowLogin(sessionFree, sessionFreeRequest).getRedirectedUrl();
+        assertTrue("testRedirectState() - wctx", redirect.contains("&wctx="));
+        final int wctxLength = redirect.length() - redirect.indexOf("&wctx=") - "&wctx=".length();
+        final int sessionFreeBytes = sessionSize((MockHttpSession) sessionFreeRequest.getSession());
+
+        final MockHttpServletRequest sessionBackedRequest = loginRequest();
+        assertFalse("testRedirectState() - no wctx",
+                flowLogin(sessionBacked, sessionBackedRequest).getRedirectedUrl().contains("&wctx="));
+        final int sessionBackedBytes = sessionSize((MockHttpSession) sessionBackedRequest.getSession());
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            flowLogin(sessionFree, loginRequest());
+            flowLogin(sessionBacked, loginRequest());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(flowLogin(sessionFree, loginRequest()).getRedirectedUrl());
+        }
+        final long sessionFreeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(flowLogin(sessionBacked, loginRequest()).getRedirectedUrl());
+        }
+        final long sessionBackedTime = System.nanoTime() - start;
+
+        LOGGER.info("testRedirectState: {} redirects, session-free {} us/request with a wctx of {} characters and {} "
+                + "bytes of session state, session-backed {} us/request with {} bytes of session state", ITERATIONS,
+                TimeUnit.NANOSECONDS.toMicros(sessionFreeTime / ITERATIONS), wctxLength, sessionFreeBytes,
+                TimeUnit.NANOSECONDS.toMicros(sessionBackedTime / ITERATIONS), sessionBackedBytes);
+    }
+
+    /**
+     * Measures the throughput of signature verification of a parsed token with each provider of the JVM offering the
+     * signature algorithm, and with the provider OpenSAML picks.
+     *
+     * @throws Exception if the EC token cannot be signed
+     */
+    @Test
+    public void testSignatureProvider() throws Exception {
+        final List<X509Credential> ecWallet = Collections.singletonList(WsFederationUtils.getSigningCredential(
+                new ClassPathResource("ec-signing.crt"), WsFederationSignatureProviderTests.KEY_TYPES));
+
+        benchmarkSignatureProvider("RSA-SHA1", WsFederationUtils.parseTokenFromString(testTokens.get("goodToken")),
+                wsFedConfig.getSigningCertificates(), "SHA1withRSA");
+        benchmarkSignatureProvider("ECDSA-SHA256", WsFederationUtils.parseTokenFromString(
+                WsFederationSignatureProviderTests.ecSignedToken(testTokens.get("goodToken"))), ecWallet,
+                "SHA256withECDSA");
+    }
+
+    /**
+     * logs the encode and decode throughput of the codec.
+     *
+     * @param label the label of the codec settings
+     * @param codec the codec
+     * @param state the state to encode
+     */
+    private static void benchmarkContextCodec(final String label, final WsFederationContextCodec codec,
+                                              final Map<String, String> state) {
+        final String[] encoded = new String[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals("testContextCodec() - " + label, state, codec.decode(codec.encode(state)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoded[i] = codec.encode(state);
+        }
+        final long encodeTime = Math.max(1, System.nanoTime() - start);
+
+        int decoded = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (codec.decode(encoded[i]) != null) {
+                decoded++;
+            }
+        }
+        final long decodeTime = Math.max(1, System.nanoTime() - start);
+
+        assertEquals("testContextCodec() - " + label + " decoded", ITERATIONS, decoded);
+        LOGGER.info("testContextCodec: {} wctx of {} characters: {} encodes and {} decodes per second", label,
+                encoded[0].length(), ITERATIONS * 1000000000L / encodeTime, ITERATIONS * 1000000000L / decodeTime);
+    }
+
+    /**
+     * parses, decrypts and verifies a token repeatedly.
+     *
+     * @param wresult  the token
+     * @param registry the registry holding the decryption key
+     * @param threads  the number of threads
+     * @return the throughput in tokens per second
+     * @throws Exception if a thread fails
+     */
+    private double measureDecryption(final String wresult, final WsFederationConfigurationRegistry registry,
+                                     final int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>(threads);
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            final Assertion assertion =
+                                    WsFederationUtils.parseTokenFromString(wresult, registry.getDecrypters());
+                            assertTrue("testDecryption() - Signature", WsFederationUtils.validateSignature(
+                                    assertion, wsFedConfig.getSigningCertificates()));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            return (double) ITERATIONS * threads * 1000000000L / (System.nanoTime() - start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * logs the verify throughput of a token with each provider.
+     *
+     * @param label         the label of the signature algorithm
+     * @param assertion     the parsed token
+     * @param signingWallet the signing credentials
+     * @param algorithm     the JCA signature algorithm
+     */
+    private static void benchmarkSignatureProvider(final String label, final Assertion assertion,
+                                                   final List<X509Credential> signingWallet,
+                                                   final String algorithm) {
+        final Provider[] providers = Security.getProviders("Signature." + algorithm);
+        final Provider[] candidates = Arrays.copyOf(providers, providers.length + 1);
+
+        for (final Provider provider : candidates) {
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertTrue("testSignatureProvider() - " + label, WsFederationUtils.validateSignature(assertion,
+                        signingWallet, provider));
+            }
+            final long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                WsFederationUtils.validateSignature(assertion, signingWallet, provider);
+            }
+            final long elapsed = Math.max(1, System.nanoTime() - start);
+            LOGGER.info("testSignatureProvider: {} with {}: {} verifications per second", label,
+                    provider == null ? "the OpenSAML default" : provider.getName(),
+                    ITERATIONS * 1000000000L / elapsed);
+        }
+    }
+
+    /**
+     * builds the login support of a single IdP.
+     *
+     * @param stateless whether the login state is carried in the wctx parameter
+     * @return the login support
+     */
+    private static WsFederationLoginSupport createLoginSupport(final boolean stateless) {
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderUrl(IDP_URL);
+        configuration.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        configuration.setRelyingPartyIdentifier("urn:federation:cas");
+
+        final WsFederationLoginSupport loginSupport = new WsFederationLoginSupport();
+        loginSupport.setConfiguration(configuration);
+        if (stateless) {
+            final WsFederationContextCodec codec = new WsFederationContextCodec();
+            codec.setSigningKey("0123456789abcdef0123456789abcdef");
+            loginSupport.setContextCodec(codec);
+        }
+        return loginSupport;
+    }
+
+    /**
+     * sends a new browser to the IdP through the webflow, writing the redirect as the flow handler adapter does.
+     *
+     * @param flowExecutor the flow executor
+     * @return the response holding the redirect
+     * @throws Exception if the flow fails
+     */
+    private static MockHttpServletResponse flowLogin(final FlowExecutor flowExecutor) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.addParameter("service", SERVICE);
+        return flowLogin(flowExecutor, request);
+    }
+
+    /**
+     * sends a browser to the IdP through the webflow, writing the redirect as the flow handler adapter does.
+     *
+     * @param flowExecutor the flow executor
+     * @param request      the login request
+     * @return the response holding the redirect
+     * @throws Exception if the flow fails
+     */
+    private static MockHttpServletResponse flowLogin(final FlowExecutor flowExecutor,
+                                                     final MockHttpServletRequest request) throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final ServletExternalContext externalContext =
+                new ServletExternalContext(new MockServletContext(), request, response);
+        flowExecutor.launchExecution("login", null, externalContext);
+        response.sendRedirect(externalContext.getExternalRedirectUrl());
+        return response;
+    }
+
+    /**
+     * builds the request of a new browser logging in to the service.
+     *
+     * @return the request
+     */
+    private static MockHttpServletRequest loginRequest() {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.addParameter("service", SERVICE);
+        request.addParameter("locale", "fr");
+        return request;
+    }
+
+    /**
+     * gets the size of the attributes of a session once serialized, as a cluster replicates them.
+     *
+     * @param session the session
+     * @return the size in bytes
+     * @throws IOException if an attribute cannot be serialized
+     */
+    private static int sessionSize(final MockHttpSession session) throws IOException {
+        int size = 0;
+        final Enumeration<?> names = session.getAttributeNames();
+        while (names.hasMoreElements()) {
+            final String name = (String) names.nextElement();
+            size += serialize(session.getAttribute(name)).length;
+        }
+        return size;
+    }
+
+    /**
+     * sends a new browser to the IdP through the fast path.
+     *
+     * @param filter the fast path filter
+     * @return the response holding the redirect
+     * @throws Exception if the filter fails
+     */
+    private static MockHttpServletResponse fastLogin(final WsFederationFastPathFilter filter) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.addParameter("service", SERVICE);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    /**
+     * builds a flow executor running the WS-Federation action and ending on the redirect to the IdP, with the
+     * session conversation manager and serialized snapshots used by CAS. Like the initial flow setup action of CAS,
+     * the flow starts by putting the service of the request in the flow scope.
+     *
+     * @param action the action
+     * @return the flow executor
+     */
+    private static FlowExecutor createFlowExecutor(final WsFederationAction action) {
+        final List<ArgumentExtractor> argumentExtractors =
+                Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor());
+        final Flow flow = Flow.create("login", null);
+        flow.getStartActionList().add(new AbstractAction() {
+            @Override
+            protected Event doExecute(final RequestContext context) {
+                context.getFlowScope().put("service", WebUtils.getService(argumentExtractors, context));
+                return success();
+            }
+        });
+        final ActionState state = new ActionState(flow, "wsFederationAction");
+        state.getActionList().add(action);
+        state.getTransitionSet().add(new Transition(WildcardTransitionCriteria.INSTANCE,
+                new DefaultTargetStateResolver("WsFederationRedirect")));
+        final EndState redirect = new EndState(flow, "WsFederationRedirect");
+        redirect.setFinalResponseAction(new AbstractAction() {
+            @Override
+            protected Event doExecute(final RequestContext context) {
+                context.getExternalContext().requestExternalRedirect(
+                        context.getFlowScope().getString("WsFederationIdentityProviderUrl"));
+                return success();
+            }
+        });
+
+        final FlowDefinitionRegistryImpl registry = new FlowDefinitionRegistryImpl();
+        registry.registerFlowDefinition(flow);
+        final FlowExecutionImplFactory executionFactory = new FlowExecutionImplFactory();
+        final DefaultFlowExecutionRepository repository = new DefaultFlowExecutionRepository(
+                new SessionBindingConversationManager(),
+                new SerializedFlowExecutionSnapshotFactory(executionFactory, registry));
+        executionFactory.setExecutionKeyFactory(repository);
+        return new FlowExecutorImpl(registry, executionFactory, repository);
+    }
+
+    private static byte[] serialize(final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] value) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.TimedCachingPersonAttributeDao;
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.jasig.services.persondir.support.StubPersonAttributeDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers the state shared between request threads: OpenSAML's global configuration, the signing wallet of a
+ * configuration being reloaded, attribute mutation and the attribute cache counters.
+ *
+ * <p>Every thread checks each result it observes, so a torn read, a lost update or a stale read fails the test.
+ * The number of iterations per thread is read from the {@code wsfed.stress.iterations} system property; the
+ * {@code stress} profile raises it well above the default used by the regular build.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations="classpath:/applicationContext.xml")
+public class WsFederationConcurrencyTests {
+
+    static final int ITERATIONS = Integer.getInteger("wsfed.stress.iterations", 200);
+
+    static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String,String> testTokens;
+
+    @Autowired
+    ApplicationContext ctx;
+
+    ExecutorService executor;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    /**
+     *
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentTokenValidation() throws Exception {
+        final String goodToken = testTokens.get("goodToken");
+        final String badToken = testTokens.get("badTokenModifiedSignature");
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    final boolean good = i % 2 == 0;
+                    final Assertion assertion = WsFederationUtils.parseTokenFromString(good ? goodToken : badToken);
+                    assertNotNull("testConcurrentTokenValidation() - NotNull", assertion);
+                    assertEquals("testConcurrentTokenValidation() - signature", good,
+                            WsFederationUtils.validateSignature(assertion, wsFedConfig.getSigningCertificates()));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentConfigurationReload() throws Exception {
+        final Resource goodCert = ctx.getResource("classpath:adfs-signing.crt");
+        final Resource badCert = ctx.getResource("classpath:bad-signing.crt");
+        final PublicKey goodKey = WsFederationUtils.getSigningCredential(goodCert).getPublicKey();
+        final PublicKey badKey = WsFederationUtils.getSigningCredential(badCert).getPublicKey();
+        final List<Resource> single = Collections.singletonList(goodCert);
+        final List<Resource> rotated = Arrays.asList(badCert, goodCert);
+
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setSigningCertificateFiles(single);
+        final String goodToken = testTokens.get("goodToken");
+        final AtomicBoolean reloading = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch readersRunning = new CountDownLatch(THREADS);
+
+        // the writer starts with the readers and waits until every reader has read a wallet, so the reloads overlap
+        // the reads instead of finishing before the readers are scheduled
+        final Future<?> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    start.await();
+                    readersRunning.await();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        configuration.setSigningCertificateFiles(i % 2 == 0 ? rotated : single);
+                    }
+                } finally {
+                    reloading.set(false);
+                }
+                return null;
+            }
+        });
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // an assertion holds the DOM and xmlsec state of its signature, so it is never shared by requests
+                final Assertion assertion = WsFederationUtils.parseTokenFromString(goodToken);
+                boolean first = true;
+                do {
+                    final List<X509Credential> wallet = configuration.getSigningCertificates();
+                    // a wallet is always one of the two complete lists, never a mix or a partially built list
+                    if (wallet.size() == 1) {
+                        assertEquals("testConcurrentConfigurationReload() - single", goodKey, wallet.get(0).getPublicKey());
+                    } else {
+                        assertEquals("testConcurrentConfigurationReload() - size", 2, wallet.size());
+                        assertEquals("testConcurrentConfigurationReload() - rotated", badKey, wallet.get(0).getPublicKey());
+                        assertEquals("testConcurrentConfigurationReload() - rotated", goodKey, wallet.get(1).getPublicKey());
+                    }
+                    assertTrue("testConcurrentConfigurationReload() - True",
+                            WsFederationUtils.validateSignature(assertion, wallet));
+                    if (first) {
+                        readersRunning.countDown();
+                        first = false;
+                    }
+                } while (reloading.get());
+                return null;
+            }
+        }, start);
+        writer.get();
+
+        // the last reload is visible once the writer is done
+        assertEquals("testConcurrentConfigurationReload() - last", ITERATIONS % 2 == 0 ? 1 : 2,
+                configuration.getSigningCertificates().size());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAttributeMutation() throws Exception {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(testTokens.get("goodToken"));
+        final CountingMutator stripDomain = new CountingMutator("stripDomain");
+        final CountingMutator upperCase = new CountingMutator("upperCase");
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setAttributeMutator(stripDomain);
+
+        final AtomicBoolean swapping = new AtomicBoolean(true);
+        final AtomicLong mutations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch readersRunning = new CountDownLatch(THREADS);
+
+        // the same two mutators are shared by every thread and swapped on the shared configuration while in use
+        final Future<?> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    start.await();
+                    readersRunning.await();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        configuration.setAttributeMutator(i % 2 == 0 ? upperCase : stripDomain);
+                    }
+                } finally {
+                    swapping.set(false);
+                }
+                return null;
+            }
+        });
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                boolean first = true;
+                do {
+                    final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+                    assertEquals("testConcurrentAttributeMutation() - upn", "jgasper@example.com",
+                            credential.getAttributes().get("upn"));
+                    assertTrue("testConcurrentAttributeMutation() - Group", credential.getAttributes().containsKey("Group"));
+
+                    // a snapshot always pairs with the mutator it was published with
+                    final WsFederationAttributeMutator mutator = configuration.getSnapshot().getAttributeMutator();
+                    mutator.modifyAttributes(credential.getAttributes());
+                    mutations.incrementAndGet();
+                    assertEquals("testConcurrentAttributeMutation() - mutated",
+                            mutator == upperCase ? "JGASPER@EXAMPLE.COM" : "jgasper",
+                            credential.getAttributes().get("upn"));
+                    assertEquals("testConcurrentAttributeMutation() - mutator", mutator.toString(),
+                            credential.getAttributes().get("mutator"));
+                    assertFalse("testConcurrentAttributeMutation() - Group removed",
+                            credential.getAttributes().containsKey("Group"));
+                    if (first) {
+                        readersRunning.countDown();
+                        first = false;
+                    }
+                } while (swapping.get());
+                return null;
+            }
+        }, start);
+        writer.get();
+
+        assertEquals("testConcurrentAttributeMutation() - no lost update", mutations.get(),
+                stripDomain.getCount() + upperCase.getCount());
+        assertSame("testConcurrentAttributeMutation() - last", ITERATIONS % 2 == 0 ? stripDomain : upperCase,
+                configuration.getAttributeMutator());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAttributeCacheCounters() throws Exception {
+        final TimedCachingPersonAttributeDao cache = new TimedCachingPersonAttributeDao();
+        cache.setAttributeRepository(new StubPersonAttributeDao(new HashMap<String, List<Object>>()));
+        cache.setMaxSize(8);
+        final AtomicLong lookups = new AtomicLong();
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    final String uid = "user" + (i % 16);
+                    assertNotNull("testConcurrentAttributeCacheCounters() - NotNull", cache.getPerson(uid));
+                    lookups.incrementAndGet();
+                }
+                return null;
+            }
+        });
+
+        assertEquals("testConcurrentAttributeCacheCounters() - no lost update", lookups.get(),
+                cache.getHitCount() + cache.getMissCount());
+        assertTrue("testConcurrentAttributeCacheCounters() - size", cache.getSize() <= 8 + THREADS);
+    }
+
+    /**
+     * runs a task on every thread at once and rethrows the first failure.
+     *
+     * @param task the task
+     * @throws Exception the first failure
+     */
+    private void runConcurrently(final Callable<Void> task) throws Exception {
+        runConcurrently(task, new CountDownLatch(1));
+    }
+
+    /**
+     * runs a task on every thread at once, released by the given latch, and rethrows the first failure. Other tasks
+     * waiting on the same latch start with them.
+     *
+     * @param task  the task
+     * @param start the latch released once every thread is submitted
+     * @throws Exception the first failure
+     */
+    private void runConcurrently(final Callable<Void> task, final CountDownLatch start) throws Exception {
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+        for (final Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    /**
+     * A mutator shared by every thread, counting its calls and marking the attributes it modified.
+     */
+    private static final class CountingMutator implements WsFederationAttributeMutator {
+        private final String name;
+
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * creates a mutator.
+         *
+         * @param name the name marked in the attributes
+         */
+        CountingMutator(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void modifyAttributes(final Map<String, Object> attributes) {
+            final String upn = attributes.get("upn").toString();
+            attributes.put("upn", "upperCase".equals(this.name) ? upn.toUpperCase() : upn.replace("@example.com", ""));
+            attributes.put("mutator", this.name);
+            attributes.remove("Group");
+            this.count.incrementAndGet();
+        }
+
+        /**
+         * gets the number of calls.
+         *
+         * @return the count
+         */
+        long getCount() {
+            return this.count.get();
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationConfigurationRegistryTests {
+
+    WsFederationConfiguration example;
+
+    WsFederationConfiguration partner;
+
+    WsFederationConfigurationRegistry registry;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        example = new WsFederationConfiguration();
+        example.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        example.setIdentityProviderUrl("https://adfs.example.com/adfs/ls/");
+
+        partner = new WsFederationConfiguration();
+        partner.setIdentityProviderIdentifier("http://sts.partner.org/adfs/services/trust");
+        partner.setIdentityProviderUrl("https://sts.partner.org/adfs/ls/");
+        partner.setEmailDomains(Arrays.asList("partner.org", "Partner-Alumni.org"));
+
+        registry = new WsFederationConfigurationRegistry();
+        registry.setConfigurations(Arrays.asList(example, partner));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGetConfigurationForIssuer() {
+        assertSame("testGetConfigurationForIssuer() - example", example,
+                registry.getConfigurationForIssuer("http://adfs.example.com/adfs/services/trust"));
+        assertSame("testGetConfigurationForIssuer() - case", partner,
+                registry.getConfigurationForIssuer("HTTP://STS.PARTNER.ORG/adfs/services/trust"));
+        assertNull("testGetConfigurationForIssuer() - unknown",
+                registry.getConfigurationForIssuer("http://sts.evil.org/adfs/services/trust"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGetConfigurationForRedirectHomeRealm() {
+        assertSame("testGetConfigurationForRedirectHomeRealm() - whr", partner,
+                registry.getConfigurationForRedirect("http://sts.partner.org/adfs/services/trust", null));
+        assertSame("testGetConfigurationForRedirectHomeRealm() - unknown whr", example,
+                registry.getConfigurationForRedirect("urn:unknown", null));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGetConfigurationForRedirectEmailDomain() {
+        assertSame("testGetConfigurationForRedirectEmailDomain() - domain", partner,
+                registry.getConfigurationForRedirect(null, "jdoe@partner.org"));
+        assertSame("testGetConfigurationForRedirectEmailDomain() - sub-domain", partner,
+                registry.getConfigurationForRedirect(null, "jdoe@mail.PARTNER-alumni.org"));
+        assertSame("testGetConfigurationForRedirectEmailDomain() - unknown", example,
+                registry.getConfigurationForRedirect(null, "jdoe@notpartner.org"));
+        assertSame("testGetConfigurationForRedirectEmailDomain() - no domain", example,
+                registry.getConfigurationForRedirect(null, "jdoe"));
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateIssuer() {
+        final WsFederationConfiguration duplicate = new WsFederationConfiguration();
+        duplicate.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        duplicate.setEmailDomains(Collections.<String>emptyList());
+        registry.setConfigurations(Arrays.asList(example, duplicate));
+    }
+}
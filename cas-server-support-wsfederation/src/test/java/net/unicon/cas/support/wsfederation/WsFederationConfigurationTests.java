@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationConfigurationTests {
+
+    WsFederationConfiguration configuration;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        configuration.setIdentityProviderUrl("https://adfs.example.com/adfs/ls/");
+        configuration.setRelyingPartyIdentifier("urn:federation:cas");
+        configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(new ClassPathResource("adfs-signing.crt")));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSnapshot() {
+        final WsFederationConfiguration.Snapshot before = configuration.getSnapshot();
+        configuration.setTolerance(5000);
+        final WsFederationConfiguration.Snapshot after = configuration.getSnapshot();
+
+        assertEquals("testSnapshot() - before", 10000, before.getTolerance());
+        assertEquals("testSnapshot() - after", 5000, after.getTolerance());
+        assertTrue("testSnapshot() - version", after.getVersion() > before.getVersion());
+        assertEquals("testSnapshot() - url", "https://adfs.example.com/adfs/ls/?wa=wsignin1.0&wtrealm=urn:federation:cas",
+                after.getAuthorizationUrl("urn:federation:cas"));
+        assertTrue("testSnapshot() - audience",
+                after.getAudiences(Collections.singleton("urn:federation:other")).contains("urn:federation:cas"));
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReload() throws Exception {
+        final Path directory = Files.createTempDirectory("wsfed");
+        final Path certificate = directory.resolve("signing.crt");
+        final WsFederationCertificateWatcher watcher = new WsFederationCertificateWatcher();
+        try {
+            copy("adfs-signing.crt", certificate);
+            configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(new FileSystemResource(certificate.toFile())));
+            final PublicKey adfsKey = configuration.getSigningCertificates().get(0).getPublicKey();
+
+            copy("bad-signing.crt", certificate);
+            assertEquals("testReload() - not reloaded", adfsKey, configuration.getSigningCertificates().get(0).getPublicKey());
+            assertTrue("testReload() - True", configuration.reload());
+            final PublicKey badKey = configuration.getSigningCertificates().get(0).getPublicKey();
+            assertNotEquals("testReload() - reloaded", adfsKey, badKey);
+
+            watcher.setConfiguration(configuration);
+            watcher.setQuietPeriod(100);
+            watcher.afterPropertiesSet();
+            final long version = configuration.getVersion();
+            copy("adfs-signing.crt", certificate);
+            for (int i = 0; i < 100 && configuration.getVersion() == version; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals("testReload() - watched", adfsKey, configuration.getSigningCertificates().get(0).getPublicKey());
+        } finally {
+            watcher.destroy();
+            Files.deleteIfExists(certificate);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReloadIgnoresOtherFiles() throws Exception {
+        final Path directory = Files.createTempDirectory("wsfed");
+        final Path certificate = directory.resolve("signing.crt");
+        final Path other = directory.resolve("other.log");
+        final WsFederationCertificateWatcher watcher = new WsFederationCertificateWatcher();
+        try {
+            copy("bad-signing.crt", certificate);
+            configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(new FileSystemResource(certificate.toFile())));
+            final PublicKey badKey = configuration.getSigningCertificates().get(0).getPublicKey();
+
+            watcher.setConfiguration(configuration);
+            watcher.setQuietPeriod(500);
+            watcher.afterPropertiesSet();
+            final long version = configuration.getVersion();
+            copy("adfs-signing.crt", certificate);
+
+            // another file of the directory keeps changing faster than the quiet period
+            for (int i = 0; i < 100 && configuration.getVersion() == version; i++) {
+                Files.write(other, String.valueOf(i).getBytes("UTF-8"));
+                Thread.sleep(50);
+            }
+            assertNotEquals("testReloadIgnoresOtherFiles() - watched", badKey,
+                    configuration.getSigningCertificates().get(0).getPublicKey());
+        } finally {
+            watcher.destroy();
+            Files.deleteIfExists(other);
+            Files.deleteIfExists(certificate);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testReloadUnreadable() {
+        configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(new ClassPathResource("missing.crt")));
+        final WsFederationConfiguration.Snapshot before = configuration.getSnapshot();
+        assertFalse("testReloadUnreadable() - False", configuration.reload());
+        assertSame("testReloadUnreadable() - kept", before, configuration.getSnapshot());
+    }
+
+    private static void copy(final String resource, final Path target) throws Exception {
+        Files.copy(new ClassPathResource(resource).getInputStream(), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
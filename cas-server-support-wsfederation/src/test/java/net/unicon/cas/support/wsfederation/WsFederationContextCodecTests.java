@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationContextCodecTests {
+
+    private static final String SIGNING_KEY = "0123456789abcdef0123456789abcdef";
+
+    WsFederationContextCodec codec;
+
+    Map<String, String> state;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        codec = new WsFederationContextCodec();
+        codec.setSigningKey(SIGNING_KEY);
+
+        state = new LinkedHashMap<String, String>();
+        state.put("service", "https://apps.example.com/app1?x=1&y=2");
+        state.put("locale", "fr");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRoundTrip() {
+        final String wctx = codec.encode(state);
+        assertTrue("testRoundTrip() - url safe", wctx.matches("[A-Za-z0-9_-]+"));
+        assertEquals("testRoundTrip() - equal", state, codec.decode(wctx));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testEncryptedRoundTrip() {
+        codec.setEncryptionKey("AAECAwQFBgcICQoLDA0ODw==");
+        final String wctx = codec.encode(state);
+        assertEquals("testEncryptedRoundTrip() - equal", state, codec.decode(wctx));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLongValue() {
+        final StringBuilder service = new StringBuilder("https://apps.example.com/app1?q=");
+        while (service.length() < 70000) {
+            service.append("\u00e9t\u00e9");
+        }
+        state.put("service", service.toString());
+        assertEquals("testLongValue() - equal", state, codec.decode(codec.encode(state)));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testTampered() {
+        final String wctx = codec.encode(state);
+        final char last = wctx.charAt(12) == 'A' ? 'B' : 'A';
+        final String tampered = wctx.substring(0, 12) + last + wctx.substring(13);
+        assertNull("testTampered() - null", codec.decode(tampered));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWrongKey() {
+        final String wctx = codec.encode(state);
+        final WsFederationContextCodec other = new WsFederationContextCodec();
+        other.setSigningKey("fedcba9876543210fedcba9876543210");
+        assertNull("testWrongKey() - null", other.decode(wctx));
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpired() throws Exception {
+        codec.setMaxAge(1);
+        final String wctx = codec.encode(state);
+        Thread.sleep(5);
+        assertNull("testExpired() - null", codec.decode(wctx));
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testClockSkew() throws Exception {
+        codec.setTolerance(60000);
+        assertEquals("testClockSkew() - within tolerance", Collections.emptyMap(),
+                codec.decode(issuedIn(5000)));
+        assertNull("testClockSkew() - beyond tolerance", codec.decode(issuedIn(120000)));
+    }
+
+    /**
+     * builds an empty signed context issued by a node whose clock is ahead of this one.
+     *
+     * @param offset how far ahead the clock of the node is, in milliseconds
+     * @return the wctx value
+     * @throws Exception if HmacSHA256 is not available
+     */
+    private static String issuedIn(final long offset) throws Exception {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(message);
+        out.writeByte(1);
+        out.writeLong(System.currentTimeMillis() + offset);
+        out.writeByte(0);
+        out.flush();
+
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SIGNING_KEY.getBytes("UTF-8"), "HmacSHA256"));
+        out.write(Arrays.copyOf(mac.doFinal(message.toByteArray()), 16));
+        out.flush();
+        return Base64.encodeBase64URLSafeString(message.toByteArray());
+    }
+}
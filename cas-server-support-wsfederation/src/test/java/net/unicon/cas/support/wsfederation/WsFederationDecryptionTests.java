@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.encryption.Decrypter;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.Encrypter;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.encryption.EncryptionParameters;
+import org.opensaml.xml.encryption.KeyEncryptionParameters;
+import org.opensaml.xml.security.credential.BasicCredential;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/applicationContext.xml")
+public class WsFederationDecryptionTests {
+
+    private static final String ASSERTION_START = "<saml:Assertion ";
+
+    private static final String ASSERTION_END = "</saml:Assertion>";
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String, String> testTokens;
+
+    String encryptedToken;
+
+    WsFederationConfigurationRegistry registry;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() throws Exception {
+        encryptedToken = encrypt(testTokens.get("goodToken"));
+
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderIdentifier(wsFedConfig.getIdentityProviderIdentifier());
+        configuration.setSigningCertificateFiles(wsFedConfig.getSigningCertificateFiles());
+        configuration.setEncryptionPrivateKeyFile(new ClassPathResource("cas-encryption.key"));
+        registry = new WsFederationConfigurationRegistry(configuration);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDecrypt() {
+        assertFalse("testDecrypt() - encrypted", encryptedToken.contains(ASSERTION_START));
+
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(encryptedToken, registry.getDecrypters());
+        assertNotNull("testDecrypt() - Not null", assertion);
+        assertEquals("testDecrypt() - Id", "_6257b2bf-7361-4081-ae1f-ec58d4310f61", assertion.getID());
+        assertTrue("testDecrypt() - Signature",
+                WsFederationUtils.validateSignature(assertion, wsFedConfig.getSigningCertificates()));
+        assertSame("testDecrypt() - reused", registry.getDecrypters().get(0), registry.getDecrypters().get(0));
+        assertNotNull("testDecrypt() - registry", WsFederationUtils.parseTokenFromString(encryptedToken, registry));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDecryptersBuiltOnChange() {
+        final List<Decrypter> decrypters = registry.getDecrypters();
+        assertEquals("testDecryptersBuiltOnChange() - one", 1, decrypters.size());
+        assertSame("testDecryptersBuiltOnChange() - cached", decrypters, registry.getDecrypters());
+
+        final WsFederationConfiguration configuration = registry.getConfigurations().get(0);
+        configuration.setEncryptionPrivateKeyFile(new ClassPathResource("cas-encryption.key"));
+        final List<Decrypter> rebuilt = registry.getDecrypters();
+        assertNotSame("testDecryptersBuiltOnChange() - new key", decrypters.get(0), rebuilt.get(0));
+        assertSame("testDecryptersBuiltOnChange() - current key", configuration.getSnapshot().getDecrypter(),
+                rebuilt.get(0));
+
+        final WsFederationConfiguration partner = new WsFederationConfiguration();
+        partner.setIdentityProviderIdentifier("http://partner.example.org/adfs/services/trust");
+        registry.setConfigurations(Arrays.asList(configuration, partner));
+        assertNotSame("testDecryptersBuiltOnChange() - new configurations", rebuilt, registry.getDecrypters());
+        assertEquals("testDecryptersBuiltOnChange() - partner without key", 1, registry.getDecrypters().size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testNoKey() {
+        assertNull("testNoKey() - no decrypter", WsFederationUtils.parseTokenFromString(encryptedToken));
+        assertTrue("testNoKey() - no key configured", new WsFederationConfigurationRegistry(wsFedConfig)
+                .getDecrypters().isEmpty());
+    }
+
+    /**
+     * encrypts the assertion of a token with the test encryption certificate, the way ADFS does, with the key inline.
+     *
+     * @param wresult the token
+     * @return the token holding the encrypted assertion
+     * @throws Exception if the assertion cannot be encrypted
+     */
+    static String encrypt(final String wresult) throws Exception {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+
+        final BasicCredential encryptionCredential = new BasicCredential();
+        try (final InputStream in = new ClassPathResource("cas-encryption.crt").getInputStream()) {
+            final X509Certificate certificate =
+                    (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+            encryptionCredential.setPublicKey(certificate.getPublicKey());
+        }
+
+        final EncryptionParameters encryptionParameters = new EncryptionParameters();
+        encryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256);
+        final KeyEncryptionParameters keyEncryptionParameters = new KeyEncryptionParameters();
+        keyEncryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+        keyEncryptionParameters.setEncryptionCredential(encryptionCredential);
+
+        final EncryptedData encryptedData = new Encrypter().encryptElement(assertion, encryptionParameters,
+                keyEncryptionParameters);
+        String encrypted = XMLHelper.nodeToString(
+                Configuration.getMarshallerFactory().getMarshaller(encryptedData).marshall(encryptedData));
+        encrypted = encrypted.substring(encrypted.indexOf("?>") + 2).trim();
+        return wresult.substring(0, wresult.indexOf(ASSERTION_START)) + encrypted
+                + wresult.substring(wresult.indexOf(ASSERTION_END) + ASSERTION_END.length());
+    }
+}
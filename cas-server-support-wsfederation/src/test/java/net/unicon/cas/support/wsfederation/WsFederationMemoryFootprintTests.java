@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jol.info.GraphLayout;
+import org.opensaml.saml1.core.Assertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the heap allocated by one login and the heap retained by its credential, for users in an increasing
+ * number of groups, and fails when a budget is exceeded.
+ *
+ * <p>The allocation is counted by the JVM for the test thread. The retained heap is measured by JOL from the object
+ * layout of the running JVM rather than from the heap in use after a garbage collection, which varies by megabytes
+ * between runs.</p>
+ *
+ * <p>A budget is a fixed number of bytes plus a number of bytes per attribute value. The defaults leave about
+ * twice the measured footprint; they are overridden with the system properties
+ * {@code wsfed.budget.allocated.base}, {@code wsfed.budget.allocated.perValue}, {@code wsfed.budget.retained.base}
+ * and {@code wsfed.budget.retained.perValue}.</p>
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/applicationContext.xml")
+public class WsFederationMemoryFootprintTests {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationMemoryFootprintTests.class);
+
+    private static final String GROUP_VALUE = "<saml:AttributeValue>example.com\\Domain Users</saml:AttributeValue>";
+
+    private static final int[] GROUPS = {0, 10, 100, 1000, 5000};
+
+    @Autowired
+    HashMap<String, String> testTokens;
+
+    /**
+     * Measures the heap allocated to parse a token, create its credential and mutate its attributes.
+     */
+    @Test
+    public void testAllocatedPerLogin() {
+        final int iterations = Integer.getInteger("wsfed.benchmark.iterations", 20);
+        final long base = Long.getLong("wsfed.budget.allocated.base", 300000);
+        final long perValue = Long.getLong("wsfed.budget.allocated.perValue", 3000);
+        final WsFederationAttributeMutator mutator = new UpnMutator();
+
+        for (final int groups : GROUPS) {
+            final String wresult = token(groups);
+            login(wresult, mutator);
+
+            long allocated = 0;
+            for (int i = 0; i < iterations; i++) {
+                final long before = allocatedBytes();
+                login(wresult, mutator);
+                allocated += allocatedBytes() - before;
+            }
+            allocated /= iterations;
+
+            final long budget = base + perValue * groups;
+            LOGGER.info("testAllocatedPerLogin: {} groups, {} KB token: {} KB allocated per login, budget {} KB",
+                    groups, wresult.length() / 1024, allocated / 1024, budget / 1024);
+            assertTrue("testAllocatedPerLogin() - " + groups + " groups: " + allocated + " > " + budget,
+                    allocated <= budget);
+        }
+    }
+
+    /**
+     * Measures the heap retained by a credential and its attributes, after the mutator ran.
+     */
+    @Test
+    public void testRetainedPerCredential() {
+        final long base = Long.getLong("wsfed.budget.retained.base", 3000);
+        final long perValue = Long.getLong("wsfed.budget.retained.perValue", 150);
+        final WsFederationAttributeMutator mutator = new UpnMutator();
+
+        for (final int groups : GROUPS) {
+            final WsFederationCredential credential = login(token(groups), mutator);
+            final long retained = retainedSize(credential);
+
+            final long budget = base + perValue * groups;
+            LOGGER.info("testRetainedPerCredential: {} groups: {} bytes retained per credential, budget {} bytes",
+                    groups, retained, budget);
+            assertTrue("testRetainedPerCredential() - " + groups + " groups: " + retained + " > " + budget,
+                    retained <= budget);
+        }
+    }
+
+    /**
+     * runs the steps of a login that create the credential.
+     *
+     * @param wresult the token
+     * @param mutator the attribute mutator
+     * @return the credential
+     */
+    private static WsFederationCredential login(final String wresult, final WsFederationAttributeMutator mutator) {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+        final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+        mutator.modifyAttributes(credential.getAttributes());
+        return credential;
+    }
+
+    /**
+     * gets the test token of a user in more groups. The signature is not valid, it is not checked here.
+     *
+     * @param groups the number of groups added
+     * @return the token
+     */
+    private String token(final int groups) {
+        final StringBuilder values = new StringBuilder(GROUP_VALUE);
+        for (int i = 0; i < groups; i++) {
+            values.append("<saml:AttributeValue>example.com\\Group ").append(i).append("</saml:AttributeValue>");
+        }
+        return testTokens.get("goodToken").replace(GROUP_VALUE, values);
+    }
+
+    /**
+     * gets the heap allocated by the current thread.
+     *
+     * @return the allocated bytes
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assertTrue("allocatedBytes() - allocation counter", threads instanceof com.sun.management.ThreadMXBean);
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * measures the heap retained by a credential with the object layout of the running JVM. The chronology of the
+     * dates is shared by all credentials and is not counted.
+     *
+     * @param credential the credential
+     * @return the size in bytes
+     */
+    private static long retainedSize(final WsFederationCredential credential) {
+        final List<Object> chronologies = new ArrayList<Object>();
+        for (final DateTime date : new DateTime[] {credential.getIssuedOn(), credential.getNotBefore(),
+                credential.getNotOnOrAfter(), credential.getRetrievedOn()}) {
+            if (date != null) {
+                chronologies.add(date.getChronology());
+            }
+        }
+        return GraphLayout.parseInstance(credential).totalSize()
+                - GraphLayout.parseInstance(chronologies.toArray()).totalSize();
+    }
+
+    /**
+     * A mutator like the ones deployments write, deriving an attribute from the upn.
+     */
+    private static final class UpnMutator implements WsFederationAttributeMutator {
+        @Override
+        public void modifyAttributes(final Map<String, Object> attributes) {
+            final Object upn = attributes.get("upn");
+            if (upn != null) {
+                attributes.put("username", upn.toString().toLowerCase());
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.Configuration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs in a JVM of its own, started by the {@code minimal-bootstrap} surefire execution with the
+ * {@value WsFederationBootstrap#MINIMAL_BOOTSTRAP_PROPERTY} system property, because openSaml is bootstrapped once
+ * per JVM and the other tests bootstrap the full library.
+ *
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations="classpath:/applicationContext.xml")
+public class WsFederationMinimalBootstrapTests {
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String,String> testTokens;
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMinimalBootstrap() throws Exception {
+        assertTrue("testMinimalBootstrap() - property",
+                Boolean.getBoolean(WsFederationBootstrap.MINIMAL_BOOTSTRAP_PROPERTY));
+
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(testTokens.get("goodToken"));
+        assertNotNull("testMinimalBootstrap() - Not null", assertion);
+        assertTrue("testMinimalBootstrap() - True",
+                WsFederationUtils.validateSignature(assertion, wsFedConfig.getSigningCertificates()));
+
+        // the SAML 2 providers are only registered by the full bootstrap
+        assertNull("testMinimalBootstrap() - no SAML 2", Configuration.getBuilderFactory()
+                .getBuilder(org.opensaml.saml2.core.Assertion.DEFAULT_ELEMENT_NAME));
+    }
+}
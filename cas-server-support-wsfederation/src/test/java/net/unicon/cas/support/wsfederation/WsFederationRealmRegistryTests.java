@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationRealmRegistryTests {
+
+    WsFederationRealmRegistry registry;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        final Map<String, String> serviceRealms = new HashMap<String, String>();
+        serviceRealms.put("apps.tenant-a.com", "urn:federation:cas:tenant-a");
+        serviceRealms.put("Portal.Tenant-B.com", "urn:federation:cas:tenant-b");
+
+        registry = new WsFederationRealmRegistry();
+        registry.setServiceRealms(serviceRealms);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testResolveRealm() {
+        assertEquals("testResolveRealm() - host", "urn:federation:cas:tenant-a",
+                registry.resolveRealm(new SimpleWebApplicationServiceImpl("https://apps.tenant-a.com/app1"), "urn:federation:cas"));
+        assertEquals("testResolveRealm() - host with port and case", "urn:federation:cas:tenant-b",
+                registry.resolveRealm(new SimpleWebApplicationServiceImpl("https://PORTAL.tenant-b.com:8443/"), "urn:federation:cas"));
+        assertEquals("testResolveRealm() - unknown host", "urn:federation:cas",
+                registry.resolveRealm(new SimpleWebApplicationServiceImpl("https://other.example.com"), "urn:federation:cas"));
+        assertEquals("testResolveRealm() - no service", "urn:federation:cas",
+                registry.resolveRealm(null, "urn:federation:cas"));
+
+        registry.setDefaultRealm("urn:federation:cas:default");
+        assertEquals("testResolveRealm() - default realm", "urn:federation:cas:default",
+                registry.resolveRealm(null, "urn:federation:cas"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGetAudiences() {
+        registry.setDefaultRealm("URN:federation:CAS");
+        assertEquals("testGetAudiences() - size", 3, registry.getAudiences().size());
+        assertTrue("testGetAudiences() - default", registry.getAudiences().contains("urn:federation:cas"));
+        assertTrue("testGetAudiences() - tenant", registry.getAudiences().contains("urn:federation:cas:tenant-b"));
+    }
+}
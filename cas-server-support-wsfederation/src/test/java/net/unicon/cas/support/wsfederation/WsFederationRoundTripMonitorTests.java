@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import net.unicon.cas.support.wsfederation.web.WsFederationLoginSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationRoundTripMonitorTests {
+
+    WsFederationRoundTripMonitor monitor;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        monitor = new WsFederationRoundTripMonitor();
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRoundTrip() {
+        final Map<String, String> state = new HashMap<String, String>();
+        monitor.redirected(state);
+        assertNotNull("testRoundTrip() - correlation id", state.get(WsFederationRoundTripMonitor.CORRELATION_ID));
+        assertEquals("testRoundTrip() - pending", 1, monitor.getPendingCount());
+
+        monitor.returned(state);
+        assertEquals("testRoundTrip() - returned", 1, monitor.getReturnedCount());
+        assertEquals("testRoundTrip() - pending after", 0, monitor.getPendingCount());
+        long dwells = 0;
+        for (final Long count : monitor.getIdpDwellTimeHistogram().values()) {
+            dwells += count;
+        }
+        assertEquals("testRoundTrip() - dwell", 1, dwells);
+
+        monitor.returned(state);
+        assertEquals("testRoundTrip() - replayed", 1, monitor.getUnmatchedCount());
+        assertEquals("testRoundTrip() - abandoned", 0, monitor.getAbandonedCount());
+        dwells = 0;
+        for (final Long count : monitor.getIdpDwellTimeHistogram().values()) {
+            dwells += count;
+        }
+        assertEquals("testRoundTrip() - replay has no dwell", 1, dwells);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testAbandoned() throws Exception {
+        monitor.setAbandonTimeout(10);
+        final Map<String, String> state = new HashMap<String, String>();
+        monitor.redirected(state);
+        Thread.sleep(50);
+        assertEquals("testAbandoned() - timed out", 1, monitor.getAbandonedCount());
+
+        monitor.setAbandonTimeout(60000);
+        monitor.setMaxPending(2);
+        for (int i = 0; i < 3; i++) {
+            monitor.redirected(new HashMap<String, String>());
+        }
+        assertEquals("testAbandoned() - overflow", 2, monitor.getAbandonedCount());
+        assertEquals("testAbandoned() - redirects", 4, monitor.getRedirectCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testHistogram() {
+        final WsFederationRoundTripMonitor.Histogram histogram = new WsFederationRoundTripMonitor.Histogram();
+        histogram.record(-5);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(700000);
+        assertEquals("testHistogram() - first", Long.valueOf(2), histogram.toMap().get("<=10"));
+        assertEquals("testHistogram() - second", Long.valueOf(1), histogram.toMap().get("<=25"));
+        assertEquals("testHistogram() - last", Long.valueOf(1), histogram.toMap().get("+Inf"));
+        assertEquals("testHistogram() - median", 10, histogram.percentile(50));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testManyPending() {
+        monitor.setMaxPending(1000);
+        final Map<String, String> kept = new HashMap<String, String>();
+        for (int i = 0; i < 100000; i++) {
+            final Map<String, String> state = new HashMap<String, String>();
+            monitor.redirected(state);
+            if (i == 99990) {
+                kept.putAll(state);
+            }
+        }
+        assertEquals("testManyPending() - pending", 1000, monitor.getPendingCount());
+        assertEquals("testManyPending() - abandoned", 99000, monitor.getAbandonedCount());
+
+        monitor.returned(kept);
+        assertEquals("testManyPending() - returned", 1, monitor.getReturnedCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testIssueLag() {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 99; i++) {
+            monitor.issued(now - 200);
+        }
+        monitor.issued(now - 40000);
+        assertEquals("testIssueLag() - p99", 250, monitor.getIssueLag99thPercentile());
+        assertEquals("testIssueLag() - slow", Long.valueOf(1), monitor.getIssueLagHistogram().get("<=60000"));
+        assertEquals("testIssueLag() - median", 0, monitor.getIdpDwellTimeMedian());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLoginSupport() {
+        final WsFederationContextCodec codec = new WsFederationContextCodec();
+        codec.setSigningKey("0123456789abcdef0123456789abcdef");
+        final WsFederationLoginSupport loginSupport = new WsFederationLoginSupport();
+        loginSupport.setContextCodec(codec);
+        loginSupport.setRoundTripMonitor(monitor);
+
+        final String wctx = loginSupport.encodeContext(new MockHttpServletRequest("GET", "/cas/login"), null);
+        final MockHttpServletRequest callback = new MockHttpServletRequest("POST", "/cas/login");
+        callback.addParameter("wctx", wctx);
+        assertNotNull("testLoginSupport() - state", loginSupport.decodeContext(callback));
+        assertNotNull("testLoginSupport() - decoded once", loginSupport.decodeContext(callback));
+        assertEquals("testLoginSupport() - returned", 1, monitor.getReturnedCount());
+        assertEquals("testLoginSupport() - unmatched", 0, monitor.getUnmatchedCount());
+    }
+}
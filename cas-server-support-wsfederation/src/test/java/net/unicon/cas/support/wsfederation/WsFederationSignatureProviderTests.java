@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.InputStreamReader;
+import java.security.KeyFactory;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/applicationContext.xml")
+public class WsFederationSignatureProviderTests {
+
+    static final List<String> KEY_TYPES = Arrays.asList("RSA", "EC");
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String, String> testTokens;
+
+    /**
+     *
+     */
+    @Test
+    public void testSigningCredentialKeepsCertificate() throws Exception {
+        final X509Credential credential = WsFederationUtils.getSigningCredential(
+                new ClassPathResource("adfs-signing.crt"));
+        assertNotNull("testSigningCredentialKeepsCertificate() - certificate", credential.getEntityCertificate());
+        assertEquals("testSigningCredentialKeepsCertificate() - key",
+                credential.getEntityCertificate().getPublicKey(), credential.getPublicKey());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSigningKeyTypes() throws Exception {
+        assertNull("testSigningKeyTypes() - EC by default",
+                WsFederationUtils.getSigningCredential(new ClassPathResource("ec-signing.crt")));
+        assertEquals("testSigningKeyTypes() - EC accepted", "EC", WsFederationUtils.getSigningCredential(
+                new ClassPathResource("ec-signing.crt"), KEY_TYPES).getPublicKey().getAlgorithm());
+
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setSigningCertificateFiles(Arrays.<org.springframework.core.io.Resource>asList(
+                new ClassPathResource("adfs-signing.crt"), new ClassPathResource("ec-signing.crt")));
+        assertNotNull("testSigningKeyTypes() - RSA", configuration.getSigningCertificates().get(0));
+        assertNull("testSigningKeyTypes() - EC", configuration.getSigningCertificates().get(1));
+
+        configuration.setSigningKeyTypes(KEY_TYPES);
+        assertNotNull("testSigningKeyTypes() - RSA reloaded", configuration.getSigningCertificates().get(0));
+        assertNotNull("testSigningKeyTypes() - EC reloaded", configuration.getSigningCertificates().get(1));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testProvider() throws Exception {
+        final Provider provider = Security.getProvider("SunRsaSign");
+        final List<X509Credential> signingWallet = wsFedConfig.getSigningCertificates();
+
+        assertValid("testProvider() - good", testTokens.get("goodToken"), signingWallet, provider, true);
+        assertValid("testProvider() - modified signature", testTokens.get("badTokenModifiedSignature"),
+                signingWallet, provider, false);
+        assertValid("testProvider() - modified attribute", testTokens.get("badTokenModifiedAttribute"),
+                signingWallet, provider, false);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testEcSignature() throws Exception {
+        final String wresult = ecSignedToken(testTokens.get("goodToken"));
+        final List<X509Credential> ecWallet = Collections.singletonList(WsFederationUtils.getSigningCredential(
+                new ClassPathResource("ec-signing.crt"), KEY_TYPES));
+
+        assertValid("testEcSignature() - default", wresult, ecWallet, null, true);
+        assertValid("testEcSignature() - SunEC", wresult, ecWallet, Security.getProvider("SunEC"), true);
+        assertValid("testEcSignature() - RSA key", wresult, wsFedConfig.getSigningCertificates(),
+                Security.getProvider("SunEC"), false);
+        assertValid("testEcSignature() - modified", wresult.replace("jgasper@example.com", "admin@example.com"),
+                ecWallet, Security.getProvider("SunEC"), false);
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownProvider() {
+        new WsFederationConfiguration().setSignatureProvider("NoSuchProvider");
+    }
+
+    /**
+     * checks that OpenSAML makes the expected signature decision with a provider.
+     *
+     * @param label         the assertion label
+     * @param wresult       the token
+     * @param signingWallet the signing credentials
+     * @param provider      the provider, or null for the default one
+     * @param valid         whether the signature is expected to be valid
+     */
+    private static void assertValid(final String label, final String wresult,
+                                    final List<X509Credential> signingWallet, final Provider provider,
+                                    final boolean valid) {
+        assertEquals(label + " OpenSAML", valid, WsFederationUtils.validateSignature(
+                WsFederationUtils.parseTokenFromString(wresult), signingWallet, provider));
+    }
+
+    /**
+     * gets a token signed again with an EC key, ECDSA-SHA256 and a SHA-256 digest.
+     *
+     * @param wresult the token
+     * @return the token
+     */
+    static String ecSignedToken(final String wresult) throws Exception {
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+
+        final String pem = FileCopyUtils.copyToString(new InputStreamReader(
+                new ClassPathResource("ec-signing.key").getInputStream(), "US-ASCII"));
+        final byte[] encoded = Base64.decodeBase64(pem.replaceAll("-----[A-Z ]+-----", ""));
+        final BasicX509Credential signingCredential = new BasicX509Credential();
+        signingCredential.setPrivateKey(KeyFactory.getInstance("EC").generatePrivate(
+                new PKCS8EncodedKeySpec(encoded)));
+
+        final Signature signature = (Signature) Configuration.getBuilderFactory()
+                .getBuilder(Signature.DEFAULT_ELEMENT_NAME).buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        assertion.setSignature(signature);
+        ((SAMLObjectContentReference) signature.getContentReferences().get(0))
+                .setDigestAlgorithm(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+
+        XMLObject root = assertion;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Configuration.getMarshallerFactory().getMarshaller(root).marshall(root);
+        Signer.signObject(signature);
+        final String xml = XMLHelper.nodeToString(root.getDOM());
+        return xml.substring(xml.indexOf("?>") + 2);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.audit;
+
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationAuditTrailTests {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WsFederationAuditTrailTests.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    Path file;
+
+    WsFederationAuditTrail auditTrail;
+
+    WsFederationCredential credential;
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("wsfed-audit", ".log");
+        auditTrail = new WsFederationAuditTrail();
+        auditTrail.setFile(file.toFile());
+        auditTrail.setFlushInterval(50);
+
+        final DateTime issuedOn = new DateTime(2014, 2, 26, 22, 51, 16, 504, DateTimeZone.UTC);
+        credential = new WsFederationCredential();
+        credential.setId("_6257b2bf-7361-4081-ae1f-ec58d4310f61");
+        credential.setIssuer("http://adfs.example.com/adfs/services/trust");
+        credential.setAudience("urn:federation:cas");
+        credential.setAuthenticationMethod("urn:federation:authentication:windows");
+        credential.setIssuedOn(issuedOn);
+        credential.setNotBefore(issuedOn);
+        credential.setNotOnOrAfter(issuedOn.plusHours(1));
+        credential.setRetrievedOn(issuedOn.plusMillis(250));
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("upn", Arrays.asList("jgasper@example.com"));
+        attributes.put("Group", Arrays.asList("example.com\\Domain Users", "example.com\\Staff"));
+        credential.setAttributes(attributes);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        auditTrail.destroy();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRecord() throws Exception {
+        auditTrail.afterPropertiesSet();
+        assertTrue("testRecord() - queued", auditTrail.record(credential, credential.getAttributes().get("upn"),
+                TimeUnit.MICROSECONDS.toNanos(1500), TimeUnit.MICROSECONDS.toNanos(300)));
+        auditTrail.destroy();
+
+        final List<String> lines = Files.readAllLines(file, UTF8);
+        assertEquals("testRecord() - lines", 1, lines.size());
+        final String[] fields = lines.get(0).split("\t");
+        assertEquals("testRecord() - fields", 8, fields.length);
+        assertTrue("testRecord() - time", fields[0].endsWith("Z"));
+        assertEquals("testRecord() - id", "_6257b2bf-7361-4081-ae1f-ec58d4310f61", fields[1]);
+        assertEquals("testRecord() - issuer", "http://adfs.example.com/adfs/services/trust", fields[2]);
+        assertEquals("testRecord() - principal", "jgasper@example.com", fields[3]);
+        assertEquals("testRecord() - method", "urn:federation:authentication:windows", fields[4]);
+        assertEquals("testRecord() - lag", "250", fields[5]);
+        assertEquals("testRecord() - validation", "1500", fields[6]);
+        assertEquals("testRecord() - ticket", "300", fields[7]);
+        assertEquals("testRecord() - written", 1, auditTrail.getWritten());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        credential.setAuthenticationMethod(null);
+        auditTrail.afterPropertiesSet();
+        auditTrail.record(credential, "evil\tuser\nwith\\newline", 0, 0);
+        auditTrail.destroy();
+
+        final List<String> lines = Files.readAllLines(file, UTF8);
+        assertEquals("testEscaping() - lines", 1, lines.size());
+        final String[] fields = lines.get(0).split("\t");
+        assertEquals("testEscaping() - fields", 8, fields.length);
+        assertEquals("testEscaping() - principal", "evil\\tuser\\nwith\\\\newline", fields[3]);
+        assertEquals("testEscaping() - method", "-", fields[4]);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFullQueue() throws Exception {
+        auditTrail.setCapacity(2);
+        assertTrue("testFullQueue() - first", auditTrail.record(credential, null, 0, 0));
+        assertTrue("testFullQueue() - second", auditTrail.record(credential, null, 0, 0));
+        assertFalse("testFullQueue() - third", auditTrail.record(credential, null, 0, 0));
+        assertEquals("testFullQueue() - dropped", 1, auditTrail.getDropped());
+        assertEquals("testFullQueue() - queued", 2, auditTrail.getQueued());
+
+        auditTrail.afterPropertiesSet();
+        auditTrail.destroy();
+        assertEquals("testFullQueue() - lines", 2, Files.readAllLines(file, UTF8).size());
+        assertEquals("testFullQueue() - queued after", 0, auditTrail.getQueued());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWriteFailure() throws Exception {
+        // the audit file cannot be opened while a directory has its name
+        Files.delete(file);
+        Files.createDirectory(file);
+        auditTrail.afterPropertiesSet();
+        assertTrue("testWriteFailure() - queued", auditTrail.record(credential, "jgasper", 0, 0));
+        for (int i = 0; i < 100 && auditTrail.getFailed() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue("testWriteFailure() - failed", auditTrail.getFailed() >= 2);
+        assertTrue("testWriteFailure() - alive", auditTrail.isWriterAlive());
+        assertEquals("testWriteFailure() - written", 0, auditTrail.getWritten());
+
+        // the writer reopens the file and writes the batch it kept
+        Files.delete(file);
+        for (int i = 0; i < 100 && auditTrail.getWritten() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue("testWriteFailure() - record", auditTrail.record(credential, "jgasper", 0, 0));
+        auditTrail.destroy();
+        assertFalse("testWriteFailure() - stopped", auditTrail.isWriterAlive());
+        assertEquals("testWriteFailure() - written after", 2, auditTrail.getWritten());
+        assertEquals("testWriteFailure() - lines", 2, Files.readAllLines(file, UTF8).size());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFormatFailure() throws Exception {
+        final Object principal = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("no name");
+            }
+        };
+        auditTrail.afterPropertiesSet();
+        auditTrail.record(credential, principal, 0, 0);
+        auditTrail.record(credential, "jgasper", 0, 0);
+        auditTrail.destroy();
+
+        final List<String> lines = Files.readAllLines(file, UTF8);
+        assertEquals("testFormatFailure() - lines", 1, lines.size());
+        assertEquals("testFormatFailure() - principal", "jgasper", lines.get(0).split("\t")[3]);
+        assertEquals("testFormatFailure() - dropped", 1, auditTrail.getDropped());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRecords() throws Exception {
+        final int threads = 4;
+        final int records = 5000;
+        auditTrail.setCapacity(threads * records);
+        auditTrail.afterPropertiesSet();
+
+        // the cost of the former synchronous log line, for comparison
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            assertNotNull(credential.toString());
+        }
+        final long toStringTime = (System.nanoTime() - start) / records;
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < records; i++) {
+                        auditTrail.record(credential, credential.getAttributes().get("upn"), 0, 0);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue("testConcurrentRecords() - done", done.await(30, TimeUnit.SECONDS));
+        final long recordTime = (System.nanoTime() - start) / (threads * records);
+        auditTrail.destroy();
+
+        LOGGER.info("record: {} ns per login, credential toString: {} ns", recordTime, toStringTime);
+        assertEquals("testConcurrentRecords() - dropped", 0, auditTrail.getDropped());
+        assertEquals("testConcurrentRecords() - written", threads * records, auditTrail.getWritten());
+        assertEquals("testConcurrentRecords() - lines", threads * records, Files.readAllLines(file, UTF8).size());
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.authentication.principal;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.NamedPersonImpl;
+import org.jasig.services.persondir.support.StubPersonAttributeDao;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class TimedCachingPersonAttributeDaoTests {
+
+    CountingPersonAttributeDao repository;
+
+    TimedCachingPersonAttributeDao cache;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        repository = new CountingPersonAttributeDao();
+        cache = new TimedCachingPersonAttributeDao();
+        cache.setAttributeRepository(repository);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCachedLookup() {
+        final IPersonAttributes first = cache.getPerson("jgasper");
+        final IPersonAttributes second = cache.getPerson("jgasper");
+        assertEquals("testCachedLookup() - name", "jgasper", first.getName());
+        assertSame("testCachedLookup() - same", first, second);
+        assertEquals("testCachedLookup() - loads", 1, repository.calls.get());
+        assertEquals("testCachedLookup() - hit ratio", 0.5, cache.getHitRatio(), 0.0001);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiration() throws Exception {
+        cache.setTimeToLive(1);
+        cache.getPerson("jgasper");
+        Thread.sleep(5);
+        cache.getPerson("jgasper");
+        assertEquals("testExpiration() - loads", 2, repository.calls.get());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNegativeCaching() throws Exception {
+        cache.setNegativeTimeToLive(1);
+        assertNull("testNegativeCaching() - null", cache.getPerson("unknown"));
+        assertNull("testNegativeCaching() - null", cache.getPerson("unknown"));
+        assertEquals("testNegativeCaching() - loads", 1, repository.calls.get());
+        Thread.sleep(5);
+        cache.getPerson("unknown");
+        assertEquals("testNegativeCaching() - expired loads", 2, repository.calls.get());
+        assertEquals("testNegativeCaching() - negative", 2, cache.getNegativeLoadCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMaxSize() {
+        cache.setMaxSize(3);
+        for (int i = 0; i < 10; i++) {
+            cache.getPerson("user" + i);
+        }
+        assertTrue("testMaxSize() - size", cache.getSize() <= 3);
+        assertEquals("testMaxSize() - evictions", 7, cache.getEvictionCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testEvictsFirstExpiring() {
+        cache.setMaxSize(2);
+        cache.getPerson("jgasper");
+        cache.getPerson("unknown");
+        cache.getPerson("other");
+        assertEquals("testEvictsFirstExpiring() - evictions", 1, cache.getEvictionCount());
+
+        // the absence of unknown expires before jgasper, loaded earlier
+        cache.getPerson("jgasper");
+        assertEquals("testEvictsFirstExpiring() - jgasper kept", 3, repository.calls.get());
+        cache.getPerson("unknown");
+        assertEquals("testEvictsFirstExpiring() - unknown evicted", 4, repository.calls.get());
+        assertEquals("testEvictsFirstExpiring() - size", 2, cache.getSize());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredEntriesLeaveTheIndex() throws Exception {
+        cache.setMaxSize(2);
+        cache.setTimeToLive(1);
+        cache.getPerson("jgasper");
+        Thread.sleep(5);
+        // the expired entry is replaced, not evicted
+        cache.getPerson("jgasper");
+        cache.setTimeToLive(300000);
+        cache.getPerson("other");
+        assertEquals("testExpiredEntriesLeaveTheIndex() - evictions", 0, cache.getEvictionCount());
+        assertEquals("testExpiredEntriesLeaveTheIndex() - size", 2, cache.getSize());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        repository.gate = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<IPersonAttributes>> results = new ArrayList<Future<IPersonAttributes>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<IPersonAttributes>() {
+                    @Override
+                    public IPersonAttributes call() throws Exception {
+                        return cache.getPerson("jgasper");
+                    }
+                }));
+            }
+            Thread.sleep(50);
+            repository.gate.countDown();
+            for (final Future<IPersonAttributes> result : results) {
+                assertNotNull("testSingleFlight() - not null", result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("testSingleFlight() - loads", 1, repository.calls.get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFailureNotCached() {
+        repository.fail = true;
+        try {
+            cache.getPerson("jgasper");
+            fail("testFailureNotCached() - exception expected");
+        } catch (final IllegalStateException ex) {
+            assertEquals("testFailureNotCached() - message", "directory down", ex.getMessage());
+        }
+        repository.fail = false;
+        assertNotNull("testFailureNotCached() - not null", cache.getPerson("jgasper"));
+        assertEquals("testFailureNotCached() - loads", 2, repository.calls.get());
+    }
+
+    /**
+     * Counts the lookups and knows every principal but "unknown".
+     */
+    static class CountingPersonAttributeDao extends StubPersonAttributeDao {
+        final AtomicInteger calls = new AtomicInteger();
+
+        volatile CountDownLatch gate;
+
+        volatile boolean fail;
+
+        @Override
+        public IPersonAttributes getPerson(final String uid) {
+            calls.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (fail) {
+                throw new IllegalStateException("directory down");
+            }
+            if ("unknown".equals(uid)) {
+                return null;
+            }
+            final Map<String, List<Object>> attributes =
+                    Collections.singletonMap("mail", Collections.<Object>singletonList(uid + "@example.com"));
+            return new NamedPersonImpl(uid, attributes);
+        }
+    }
+}
@@ -27,7 +27,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import static org.junit.Assert.*;
 
@@ -106,6 +114,20 @@ public class WsFederationCredentialTests {
         assertFalse("testIsValidBadAudeience() - False", result);
     }
 
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIsValidAudienceSet() throws Exception {
+        final HashSet<String> audiences = new HashSet<String>(Arrays.asList("urn:federation:cas:tenant-a", "urn:federation:cas"));
+        standardCred.setAudience("URN:federation:CAS");
+        assertTrue("testIsValidAudienceSet() - True", standardCred.isValid(audiences, "http://adfs.example.com/adfs/services/trust", 2000));
+
+        standardCred.setAudience("urn:federation:cas:tenant-c");
+        assertFalse("testIsValidAudienceSet() - False", standardCred.isValid(audiences, "http://adfs.example.com/adfs/services/trust", 2000));
+    }
+
     /**
      *
      * @throws Exception
@@ -165,4 +187,111 @@ public class WsFederationCredentialTests {
     public void setTestTokens(HashMap<String, String> testTokens) {
         this.testTokens = testTokens;
     }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        final String wresult = testTokens.get("goodToken");
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+        final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+        credential.getAttributes().put("http://schemas.example.com/claims/costcenter", Arrays.asList("42", "43"));
+
+        final WsFederationCredential copy = (WsFederationCredential) deserialize(serialize(credential));
+        assertEquals("testSerializationRoundTrip() - id", credential.getId(), copy.getId());
+        assertEquals("testSerializationRoundTrip() - issuer", credential.getIssuer(), copy.getIssuer());
+        assertEquals("testSerializationRoundTrip() - audience", credential.getAudience(), copy.getAudience());
+        assertEquals("testSerializationRoundTrip() - method", credential.getAuthenticationMethod(),
+                copy.getAuthenticationMethod());
+        assertEquals("testSerializationRoundTrip() - issuedOn", credential.getIssuedOn().getMillis(),
+                copy.getIssuedOn().getMillis());
+        assertEquals("testSerializationRoundTrip() - notOnOrAfter", credential.getNotOnOrAfter().getMillis(),
+                copy.getNotOnOrAfter().getMillis());
+        assertEquals("testSerializationRoundTrip() - attributes", credential.getAttributes(), copy.getAttributes());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSerializedSize() throws Exception {
+        final String wresult = testTokens.get("goodToken");
+        final Assertion assertion = WsFederationUtils.parseTokenFromString(wresult);
+        final WsFederationCredential credential = WsFederationUtils.createCredentialFromToken(assertion);
+
+        // the fields as default serialization wrote them before the credential was externalizable
+        final Object[] fields = {credential.getAudience(), credential.getAuthenticationMethod(), credential.getId(),
+                credential.getIssuer(), credential.getIssuedOn(), credential.getNotBefore(),
+                credential.getNotOnOrAfter(), credential.getRetrievedOn(),
+                new HashMap<String, Object>(credential.getAttributes()), };
+
+        final int compact = serialize(credential).length;
+        final int legacy = serialize(fields).length;
+        assertTrue("testSerializedSize() - True " + compact + " < " + legacy, compact < legacy);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSerializationLongValues() throws Exception {
+        final StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 70000) {
+            longValue.append("example.com\\Gr\u00fcppe ").append(longValue.length()).append(' ');
+        }
+        final WsFederationCredential credential = standardCred;
+        credential.setAttributes(new HashMap<String, Object>());
+        credential.getAttributes().put("upn", longValue.toString());
+        credential.getAttributes().put("Group", Arrays.asList("short", longValue.toString()));
+        credential.getAttributes().put(longValue.toString(), "long claim name");
+
+        final WsFederationCredential copy = (WsFederationCredential) deserialize(serialize(credential));
+        assertEquals("testSerializationLongValues() - id", credential.getId(), copy.getId());
+        assertEquals("testSerializationLongValues() - attributes", credential.getAttributes(), copy.getAttributes());
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNegativeLength() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeByte(1);
+        out.writeBoolean(true);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        out.close();
+
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            new WsFederationCredential().readExternal(in);
+            fail("testNegativeLength() - InvalidObjectException");
+        } catch (final InvalidObjectException ex) {
+            assertEquals("testNegativeLength() - message", "String length is negative", ex.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] serialize(final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] value) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
 }
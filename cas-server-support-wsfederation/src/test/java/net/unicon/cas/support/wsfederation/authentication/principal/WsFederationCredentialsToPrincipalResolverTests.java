@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.authentication.principal;
+
+import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.StubPersonAttributeDao;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationCredentialsToPrincipalResolverTests {
+
+    WsFederationCredentialsToPrincipalResolver resolver;
+
+    CountingPersonAttributeDao repository;
+
+    WsFederationCredential credential;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        configuration.setIdentityAttribute("upn");
+
+        final Map<String, List<Object>> backingMap = new HashMap<String, List<Object>>();
+        backingMap.put("department", Arrays.<Object>asList("IT"));
+        backingMap.put("email", Arrays.<Object>asList("directory@example.com"));
+        repository = new CountingPersonAttributeDao(backingMap);
+
+        resolver = new WsFederationCredentialsToPrincipalResolver();
+        resolver.setConfiguration(configuration);
+        resolver.setAttributeRepository(repository);
+
+        final Map<String, Object> claims = new HashMap<String, Object>();
+        claims.put("upn", "jgasper@example.com");
+        claims.put("email", "jgasper@example.com");
+        credential = new WsFederationCredential();
+        credential.setIssuer("http://adfs.example.com/adfs/services/trust");
+        credential.setAttributes(claims);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRepositoryMode() {
+        final Principal principal = resolver.resolve(credential);
+        assertEquals("testRepositoryMode() - id", "jgasper@example.com", principal.getId());
+        assertEquals("testRepositoryMode() - attribute", "directory@example.com", principal.getAttributes().get("email"));
+        assertEquals("testRepositoryMode() - queries", 1, repository.calls.get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRepositoryModeNoAttributes() {
+        resolver.setAttributeRepository(new CountingPersonAttributeDao(new HashMap<String, List<Object>>()));
+        resolver.setReturnNullIfNoAttributes(true);
+        final Principal principal = resolver.resolve(credential);
+        assertNotNull("testRepositoryModeNoAttributes() - found", principal);
+        assertEquals("testRepositoryModeNoAttributes() - id", "jgasper@example.com", principal.getId());
+        assertTrue("testRepositoryModeNoAttributes() - attributes", principal.getAttributes().isEmpty());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testClaimsMode() {
+        resolver.setMode(WsFederationCredentialsToPrincipalResolver.Mode.CLAIMS);
+        final Principal principal = resolver.resolve(credential);
+        assertEquals("testClaimsMode() - id", "jgasper@example.com", principal.getId());
+        assertEquals("testClaimsMode() - attribute", "jgasper@example.com", principal.getAttributes().get("email"));
+        assertFalse("testClaimsMode() - False", principal.getAttributes().containsKey("department"));
+        assertEquals("testClaimsMode() - queries", 0, repository.calls.get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMergeModeComplete() {
+        resolver.setMode(WsFederationCredentialsToPrincipalResolver.Mode.MERGE);
+        resolver.setRequiredAttributes(Arrays.asList("email"));
+        final Principal principal = resolver.resolve(credential);
+        assertEquals("testMergeModeComplete() - attribute", "jgasper@example.com", principal.getAttributes().get("email"));
+        assertEquals("testMergeModeComplete() - queries", 0, repository.calls.get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMergeModeMissing() {
+        resolver.setMode(WsFederationCredentialsToPrincipalResolver.Mode.MERGE);
+        resolver.setRequiredAttributes(Arrays.asList("email", "department"));
+        final Principal principal = resolver.resolve(credential);
+        assertEquals("testMergeModeMissing() - claim wins", "jgasper@example.com", principal.getAttributes().get("email"));
+        assertEquals("testMergeModeMissing() - completed", "IT", principal.getAttributes().get("department"));
+        assertEquals("testMergeModeMissing() - queries", 1, repository.calls.get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMissingIdentityAttribute() {
+        resolver.setMode(WsFederationCredentialsToPrincipalResolver.Mode.CLAIMS);
+        credential.setAttributes(Collections.<String, Object>singletonMap("email", "jgasper@example.com"));
+        assertNull("testMissingIdentityAttribute() - Null", resolver.resolve(credential));
+    }
+
+    /**
+     * An attribute repository counting its queries.
+     */
+    static final class CountingPersonAttributeDao extends StubPersonAttributeDao {
+        final AtomicInteger calls = new AtomicInteger();
+
+        CountingPersonAttributeDao(final Map<String, List<Object>> backingMap) {
+            super(backingMap);
+        }
+
+        @Override
+        public IPersonAttributes getPerson(final String uid) {
+            calls.incrementAndGet();
+            return super.getPerson(uid);
+        }
+    }
+}
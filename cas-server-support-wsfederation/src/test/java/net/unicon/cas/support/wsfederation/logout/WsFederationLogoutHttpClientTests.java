@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.logout;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationLogoutHttpClientTests {
+
+    HttpServer server;
+
+    String baseUrl;
+
+    Set<Integer> clientPorts;
+
+    CountDownLatch fastReceived;
+
+    CountDownLatch slowReceived;
+
+    CountDownLatch slowReleased;
+
+    CountDownLatch slowAnswered;
+
+    WsFederationLogoutHttpClient client;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() throws IOException {
+        clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        fastReceived = new CountDownLatch(1);
+        slowReceived = new CountDownLatch(1);
+        slowReleased = new CountDownLatch(1);
+        slowAnswered = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/fast", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    continue;
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                fastReceived.countDown();
+            }
+        });
+        server.createContext("/body", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    continue;
+                }
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                final byte[] body = "<html>logged out</html>".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                slowReceived.countDown();
+                try {
+                    slowReleased.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                slowAnswered.countDown();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        client = new WsFederationLogoutHttpClient();
+        client.setThreads(4);
+        client.setReadTimeout(300);
+    }
+
+    /**
+     *
+     */
+    @After
+    public void tearDown() throws Exception {
+        client.destroy();
+        slowReleased.countDown();
+        server.stop(0);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testAsyncDoesNotWait() throws Exception {
+        assertTrue("testAsyncDoesNotWait() - slow", client.sendMessageToEndPoint(baseUrl + "/slow", "<a/>", true));
+        assertTrue("testAsyncDoesNotWait() - slow received", slowReceived.await(5, TimeUnit.SECONDS));
+
+        // the slow service holds its answer until released, so the caller and the fast service cannot wait for it
+        assertTrue("testAsyncDoesNotWait() - fast", client.sendMessageToEndPoint(baseUrl + "/fast", "<b/>", true));
+        assertEquals("testAsyncDoesNotWait() - slow answered before return", 1, slowAnswered.getCount());
+        assertTrue("testAsyncDoesNotWait() - fast received", fastReceived.await(5, TimeUnit.SECONDS));
+        assertEquals("testAsyncDoesNotWait() - slow answered before fast", 1, slowAnswered.getCount());
+
+        client.destroy();
+        assertEquals("testAsyncDoesNotWait() - sent", 1, client.getSentCount());
+        assertEquals("testAsyncDoesNotWait() - timed out", 1, client.getFailedCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testKeepAlive() {
+        assertTrue("testKeepAlive() - first", client.sendMessageToEndPoint(baseUrl + "/body", "<a/>", false));
+        assertTrue("testKeepAlive() - second", client.sendMessageToEndPoint(baseUrl + "/body", "<b/>", false));
+        assertTrue("testKeepAlive() - valid", client.isValidEndPoint(baseUrl + "/body"));
+        assertEquals("testKeepAlive() - one connection", 1, clientPorts.size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSyncTimeout() {
+        assertTrue("testSyncTimeout() - fast", client.sendMessageToEndPoint(baseUrl + "/fast", "<a/>", false));
+        assertFalse("testSyncTimeout() - slow", client.sendMessageToEndPoint(baseUrl + "/slow", "<a/>", false));
+        assertFalse("testSyncTimeout() - unknown", client.sendMessageToEndPoint(baseUrl + "/missing", "<a/>", false));
+        assertTrue("testSyncTimeout() - valid", client.isValidEndPoint(baseUrl + "/fast"));
+        assertFalse("testSyncTimeout() - invalid", client.isValidEndPoint("not a url"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testQueueFull() {
+        client.setThreads(1);
+        client.setQueueSize(1);
+        assertTrue("testQueueFull() - running", client.sendMessageToEndPoint(baseUrl + "/slow", "<a/>", true));
+        assertTrue("testQueueFull() - queued", client.sendMessageToEndPoint(baseUrl + "/slow", "<a/>", true));
+        assertFalse("testQueueFull() - rejected", client.sendMessageToEndPoint(baseUrl + "/slow", "<a/>", true));
+        assertEquals("testQueueFull() - count", 1, client.getRejectedCount());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.ticket.support;
+
+import net.unicon.cas.support.wsfederation.authentication.WsFederationAuthenticationMetaDataPopulator;
+import net.unicon.cas.support.wsfederation.authentication.handler.support.WsFederationAuthenticationHandler;
+import net.unicon.cas.support.wsfederation.authentication.principal.WsFederationCredential;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.BasicCredentialMetaData;
+import org.jasig.cas.authentication.Credential;
+import org.jasig.cas.authentication.HandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.HardTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationExpirationPolicyTests {
+
+    WsFederationExpirationPolicy policy;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        policy = new WsFederationExpirationPolicy();
+        policy.setDelegate(new NeverExpiresExpirationPolicy());
+        policy.setGracePeriod(60000);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testValidAssertion() {
+        assertFalse("testValidAssertion() - expired", ticket(credential(new DateTime().plusMinutes(10))).isExpired());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testExpiredAssertion() {
+        assertTrue("testExpiredAssertion() - not expired",
+                ticket(credential(new DateTime().minusMinutes(2))).isExpired());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGracePeriod() {
+        assertFalse("testGracePeriod() - expired", ticket(credential(new DateTime().minusSeconds(30))).isExpired());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDelegate() {
+        policy.setDelegate(new HardTimeoutExpirationPolicy(-1));
+        assertTrue("testDelegate() - not expired", ticket(credential(new DateTime().plusMinutes(10))).isExpired());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testOtherCredentials() {
+        assertFalse("testOtherCredentials() - no conditions", ticket(credential(null)).isExpired());
+        assertFalse("testOtherCredentials() - username", ticket(new UsernamePasswordCredential("user", "pass"))
+                .isExpired());
+    }
+
+    /**
+     * creates a credential whose assertion is valid until a time.
+     *
+     * @param notOnOrAfter the end of the validity of the assertion
+     * @return the credential
+     */
+    private static WsFederationCredential credential(final DateTime notOnOrAfter) {
+        final WsFederationCredential credential = new WsFederationCredential();
+        credential.setId("_6257b2bf-7361-4081-ae1f-ec58d4310f61");
+        credential.setNotOnOrAfter(notOnOrAfter);
+        return credential;
+    }
+
+    /**
+     * creates a ticket granting ticket as the authentication manager would, running the populator.
+     *
+     * @param credential the credential
+     * @return the ticket
+     */
+    private TicketGrantingTicketImpl ticket(final Credential credential) {
+        final AuthenticationBuilder builder = new AuthenticationBuilder(new SimplePrincipal("jgasper@example.com"))
+                .addCredential(new BasicCredentialMetaData(credential))
+                .addSuccess("handler", new HandlerResult(new WsFederationAuthenticationHandler(),
+                        new BasicCredentialMetaData(credential)));
+        new WsFederationAuthenticationMetaDataPopulator().populateAttributes(builder, credential);
+        return new TicketGrantingTicketImpl("TGT-1", builder.build(), policy);
+    }
+}
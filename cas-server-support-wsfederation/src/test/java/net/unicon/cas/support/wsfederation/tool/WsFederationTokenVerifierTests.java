@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.tool;
+
+import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations="classpath:/applicationContext.xml")
+public class WsFederationTokenVerifierTests {
+
+    @Autowired
+    WsFederationConfiguration wsFedConfig;
+
+    @Autowired
+    HashMap<String,String> testTokens;
+
+    WsFederationTokenVerifier verifier;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        verifier = new WsFederationTokenVerifier();
+        for (final X509Credential certificate : wsFedConfig.getSigningCertificates()) {
+            verifier.addSigningCertificate(certificate);
+        }
+        verifier.setIssuer("http://adfs.example.com/adfs/services/trust");
+        verifier.addAudience("urn:federation:cas");
+        verifier.setValidationTime(new DateTime("2014-02-26T22:51:17.000Z").withZone(DateTimeZone.UTC));
+        verifier.setParallelism(2);
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testVerifyFile() throws Exception {
+        final Path input = Files.createTempFile("wresult", ".txt");
+        try {
+            Files.write(input, Arrays.asList(testTokens.get("goodToken"), testTokens.get("goodToken"),
+                    testTokens.get("badTokenModifiedSignature"), "not a token"), Charset.forName("UTF-8"));
+
+            final WsFederationTokenVerifier.Report report = verifier.verify(input);
+            assertEquals("testVerifyFile() - total", 4, report.getTotal());
+            assertEquals("testVerifyFile() - valid", 2, report.getCount("VALID"));
+            assertEquals("testVerifyFile() - signature", 1, report.getCount(WsFederationTokenVerifier.INVALID_SIGNATURE));
+            assertEquals("testVerifyFile() - unparseable", 1, report.getCount(WsFederationTokenVerifier.UNPARSEABLE));
+        } finally {
+            Files.delete(input);
+        }
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testVerifyDirectory() throws Exception {
+        final Path input = Files.createTempDirectory("wresult");
+        final Path token = input.resolve("token.xml");
+        try {
+            Files.write(token, testTokens.get("goodToken").getBytes("UTF-8"));
+
+            verifier.setValidationTime(new DateTime("2014-02-27T22:51:17.000Z").withZone(DateTimeZone.UTC));
+            final WsFederationTokenVerifier.Report report = verifier.verify(input);
+            assertEquals("testVerifyDirectory() - total", 1, report.getTotal());
+            assertEquals("testVerifyDirectory() - drift", 1, report.getCount("OUTSIDE_DRIFT"));
+        } finally {
+            Files.delete(token);
+            Files.delete(input);
+        }
+    }
+}
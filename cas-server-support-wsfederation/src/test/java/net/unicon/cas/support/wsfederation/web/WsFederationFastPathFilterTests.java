@@ -0,0 +1,512 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.web;
+
+import net.unicon.cas.support.wsfederation.WsFederationAttributeMutator;
+import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import net.unicon.cas.support.wsfederation.WsFederationContextCodec;
+import net.unicon.cas.support.wsfederation.WsFederationRoundTripMonitor;
+import net.unicon.cas.support.wsfederation.WsFederationUtils;
+import net.unicon.cas.support.wsfederation.web.flow.WsFederationAction;
+import org.jasig.cas.CentralAuthenticationService;
+import org.jasig.cas.authentication.Credential;
+import org.jasig.cas.authentication.principal.AbstractWebApplicationService;
+import org.jasig.cas.authentication.principal.Response;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.authentication.principal.WebApplicationService;
+import org.jasig.cas.logout.LogoutRequest;
+import org.jasig.cas.services.UnauthorizedServiceException;
+import org.jasig.cas.ticket.InvalidTicketException;
+import org.jasig.cas.ticket.TicketCreationException;
+import org.jasig.cas.ticket.TicketException;
+import org.jasig.cas.validation.Assertion;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.CasArgumentExtractor;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.util.CookieGenerator;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.test.MockRequestContext;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/applicationContext.xml")
+public class WsFederationFastPathFilterTests {
+
+    private static final String IDP_URL = "https://adfs.example.com/adfs/ls/";
+
+    private static final String SERVICE = "https://app.example.org/";
+
+    @Autowired
+    HashMap<String, String> testTokens;
+
+    WsFederationConfiguration configuration;
+
+    WsFederationLoginSupport loginSupport;
+
+    StubCentralAuthenticationService centralAuthenticationService;
+
+    WsFederationFastPathFilter filter;
+
+    CookieGenerator tgcGenerator;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderUrl(IDP_URL);
+        configuration.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        configuration.setRelyingPartyIdentifier("urn:federation:cas");
+        configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(
+                new ClassPathResource("cas-encryption.crt")));
+
+        final WsFederationContextCodec codec = new WsFederationContextCodec();
+        codec.setSigningKey("0123456789abcdef0123456789abcdef");
+
+        loginSupport = new WsFederationLoginSupport();
+        loginSupport.setConfiguration(configuration);
+        loginSupport.setContextCodec(codec);
+
+        tgcGenerator = new CookieGenerator();
+        tgcGenerator.setCookieName("CASTGC");
+
+        centralAuthenticationService = new StubCentralAuthenticationService();
+
+        filter = new WsFederationFastPathFilter();
+        filter.setLoginSupport(loginSupport);
+        filter.setTicketGrantingTicketCookieGenerator(tgcGenerator);
+        filter.setCentralAuthenticationService(centralAuthenticationService);
+        filter.setArgumentExtractors(Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor()));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRedirect() throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.addParameter("service", "https://app.example.org/");
+        request.addParameter("theme", "blue");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, response, chain);
+
+        assertNull("testRedirect() - chain", chain.getRequest());
+        assertTrue("testRedirect() - url", response.getRedirectedUrl().startsWith(IDP_URL + "?wa=wsignin1.0"));
+        assertTrue("testRedirect() - wctx", response.getRedirectedUrl().contains("&wctx="));
+        assertNull("testRedirect() - session", request.getSession(false));
+        assertEquals("testRedirect() - count", 1, filter.getRedirectCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testHandOff() throws Exception {
+        final MockHttpServletRequest sso = new MockHttpServletRequest("GET", "/cas/login");
+        sso.setCookies(new Cookie("CASTGC", "TGT-1-abc"));
+        assertHandedOff("testHandOff() - sso", sso);
+
+        final MockHttpServletRequest gateway = new MockHttpServletRequest("GET", "/cas/login");
+        gateway.addParameter("gateway", "true");
+        assertHandedOff("testHandOff() - gateway", gateway);
+
+        // the flow renders the error of a callback it cannot trust
+        final MockHttpServletRequest callback = new MockHttpServletRequest("POST", "/cas/login");
+        callback.addParameter("wa", "wsignin1.0");
+        callback.addParameter("wresult", "<t:RequestSecurityTokenResponse/>");
+        callback.addParameter("wctx", "not-a-context");
+        assertHandedOff("testHandOff() - bad wctx", callback);
+
+        loginSupport.setContextCodec(null);
+        assertHandedOff("testHandOff() - stateful", new MockHttpServletRequest("GET", "/cas/login"));
+        assertEquals("testHandOff() - count", 4, filter.getHandedOffCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testHandOffOtherService() throws Exception {
+        filter.setArgumentExtractors(Arrays.asList(new CasArgumentExtractor(), new ArgumentExtractor() {
+            @Override
+            public WebApplicationService extractService(final HttpServletRequest request) {
+                final String target = request.getParameter("TARGET");
+                return target == null ? null : new TargetService(target);
+            }
+        }));
+
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        request.addParameter("TARGET", "https://app.example.org/saml");
+        assertHandedOff("testHandOffOtherService()", request);
+        assertEquals("testHandOffOtherService() - no redirect", 0, filter.getRedirectCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallback() throws Exception {
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        request.setCookies(new Cookie("CASTGC", "TGT-1-old"));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, response, chain);
+
+        assertNull("testCallback() - chain", chain.getRequest());
+        assertEquals("testCallback() - credential", "_6257b2bf-7361-4081-ae1f-ec58d4310f61",
+                centralAuthenticationService.credentialId);
+        assertEquals("testCallback() - cookie", "TGT-2-new", response.getCookie("CASTGC").getValue());
+        assertEquals("testCallback() - previous destroyed", Collections.singletonList("TGT-1-old"),
+                centralAuthenticationService.destroyed);
+        assertEquals("testCallback() - service", SERVICE, centralAuthenticationService.service.getId());
+        assertEquals("testCallback() - redirect", SERVICE + "?ticket=ST-1-abc", response.getRedirectedUrl());
+        assertEquals("testCallback() - count", 1, filter.getCallbackCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackWithoutService() throws Exception {
+        final MockHttpServletRequest request = callbackRequest(signedToken(), null);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertEquals("testCallbackWithoutService() - cookie", "TGT-2-new", response.getCookie("CASTGC").getValue());
+        assertTrue("testCallbackWithoutService() - nothing destroyed",
+                centralAuthenticationService.destroyed.isEmpty());
+        assertNull("testCallbackWithoutService() - no service ticket", centralAuthenticationService.service);
+        assertEquals("testCallbackWithoutService() - redirect", "/cas/login", response.getRedirectedUrl());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackWarnCookie() throws Exception {
+        final CookieGenerator warnGenerator = new CookieGenerator();
+        warnGenerator.setCookieName("CASPRIVACY");
+        filter.setWarnCookieGenerator(warnGenerator);
+
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        request.setCookies(new Cookie("CASPRIVACY", "true"));
+        assertHandedOff("testCallbackWarnCookie()", request);
+        assertNull("testCallbackWarnCookie() - no ticket", centralAuthenticationService.credentialId);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackTicketException() throws Exception {
+        centralAuthenticationService.ticketGrantingTicketError = new TicketCreationException();
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, response, chain);
+
+        assertSame("testCallbackTicketException() - chain", request, chain.getRequest());
+        assertNull("testCallbackTicketException() - cookie", response.getCookie("CASTGC"));
+        assertNull("testCallbackTicketException() - redirect", response.getRedirectedUrl());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackServiceTicketException() throws Exception {
+        centralAuthenticationService.serviceTicketError = new InvalidTicketException("TGT-2-new");
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+
+        // the webflow renders the error with the new ticket granting ticket
+        assertEquals("testCallbackServiceTicketException() - cookie", "TGT-2-new",
+                response.getCookie("CASTGC").getValue());
+        assertEquals("testCallbackServiceTicketException() - redirect",
+                "/cas/login?service=https%3A%2F%2Fapp.example.org%2F", response.getRedirectedUrl());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackUnauthorizedService() throws Exception {
+        centralAuthenticationService.unauthorized = true;
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertEquals("testCallbackUnauthorizedService() - redirect",
+                "/cas/login?service=https%3A%2F%2Fapp.example.org%2F", response.getRedirectedUrl());
+        assertEquals("testCallbackUnauthorizedService() - count", 1, filter.getCallbackCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackInvalidToken() throws Exception {
+        // signed by the ADFS test key, which this configuration does not trust
+        assertHandedOff("testCallbackInvalidToken() - untrusted", callbackRequest(testTokens.get("goodToken"),
+                SERVICE));
+        assertHandedOff("testCallbackInvalidToken() - modified", callbackRequest(
+                signedToken().replace(">John<", ">Jane<"), SERVICE));
+        assertHandedOff("testCallbackInvalidToken() - garbage", callbackRequest("<t:Foo", SERVICE));
+        assertNull("testCallbackInvalidToken() - no ticket", centralAuthenticationService.credentialId);
+        assertEquals("testCallbackInvalidToken() - count", 3, filter.getHandedOffCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackInvalidTokenValidatedOnce() throws Exception {
+        final WsFederationRoundTripMonitor roundTripMonitor = new WsFederationRoundTripMonitor();
+        loginSupport.setRoundTripMonitor(roundTripMonitor);
+        // the signature is good, but the token is issued to another realm
+        configuration.setRelyingPartyIdentifier("urn:federation:other");
+        final MockHttpServletRequest request = callbackRequest(signedToken(), SERVICE);
+        assertHandedOff("testCallbackInvalidTokenValidatedOnce() - handed off", request);
+
+        final WsFederationAction action = new WsFederationAction();
+        action.setLoginSupport(loginSupport);
+        action.setCentralAuthenticationService(centralAuthenticationService);
+        final MockRequestContext context = new MockRequestContext();
+        context.setExternalContext(new ServletExternalContext(new MockServletContext(), request,
+                new MockHttpServletResponse()));
+        assertEquals("testCallbackInvalidTokenValidatedOnce() - event", "error", action.execute(context).getId());
+
+        long issued = 0;
+        for (final Long count : roundTripMonitor.getIssueLagHistogram().values()) {
+            issued += count;
+        }
+        assertEquals("testCallbackInvalidTokenValidatedOnce() - validated once", 1, issued);
+        assertNull("testCallbackInvalidTokenValidatedOnce() - no ticket", centralAuthenticationService.credentialId);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCallbackRuntimeException() throws Exception {
+        configuration.setAttributeMutator(new WsFederationAttributeMutator() {
+            @Override
+            public void modifyAttributes(final Map<String, Object> attributes) {
+                throw new IllegalStateException("mutator failed");
+            }
+        });
+        assertHandedOff("testCallbackRuntimeException()", callbackRequest(signedToken(), SERVICE));
+        assertNull("testCallbackRuntimeException() - no ticket", centralAuthenticationService.credentialId);
+    }
+
+    /**
+     * builds the callback of the IdP, with the wctx the filter put in the redirect.
+     *
+     * @param wresult the token
+     * @param service the service, may be null
+     * @return the request
+     */
+    private MockHttpServletRequest callbackRequest(final String wresult, final String service) {
+        final MockHttpServletRequest redirect = new MockHttpServletRequest("GET", "/cas/login");
+        final String wctx = loginSupport.encodeContext(redirect,
+                service == null ? null : new SimpleWebApplicationServiceImpl(service));
+
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cas/login");
+        request.addParameter("wa", "wsignin1.0");
+        request.addParameter("wresult", wresult);
+        request.addParameter("wctx", wctx);
+        return request;
+    }
+
+    /**
+     * gets the test token issued now and signed again by the test encryption key pair, which the configuration
+     * trusts.
+     *
+     * @return the token
+     * @throws Exception if the token cannot be signed
+     */
+    private String signedToken() throws Exception {
+        final org.opensaml.saml1.core.Assertion assertion =
+                WsFederationUtils.parseTokenFromString(testTokens.get("goodToken"));
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        assertion.setIssueInstant(now);
+        assertion.getConditions().setNotBefore(now);
+        assertion.getConditions().setNotOnOrAfter(now.plusHours(1));
+
+        final BasicX509Credential signingCredential = new BasicX509Credential();
+        signingCredential.setPrivateKey(WsFederationUtils.getDecryptionCredential(
+                new ClassPathResource("cas-encryption.key")).getPrivateKey());
+
+        final Signature signature = (Signature) Configuration.getBuilderFactory()
+                .getBuilder(Signature.DEFAULT_ELEMENT_NAME).buildObject(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(signingCredential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        assertion.setSignature(signature);
+        ((SAMLObjectContentReference) signature.getContentReferences().get(0))
+                .setDigestAlgorithm(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+
+        XMLObject root = assertion;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Configuration.getMarshallerFactory().getMarshaller(root).marshall(root);
+        Signer.signObject(signature);
+
+        final String signed = XMLHelper.nodeToString(root.getDOM());
+        return signed.substring(signed.indexOf("?>") + 2).trim();
+    }
+
+    /**
+     * asserts that a request went through to the webflow.
+     *
+     * @param message the assertion message
+     * @param request the request
+     * @throws Exception if the filter fails
+     */
+    private void assertHandedOff(final String message, final MockHttpServletRequest request) throws Exception {
+        final MockFilterChain chain = new MockFilterChain();
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertSame(message, request, chain.getRequest());
+        assertNull(message, response.getRedirectedUrl());
+    }
+
+    /**
+     * A service that is not a CAS service, as a SAML 1.1 TARGET service is.
+     */
+    private static final class TargetService extends AbstractWebApplicationService {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * creates a service.
+         *
+         * @param id the service id
+         */
+        TargetService(final String id) {
+            super(id, id, null);
+        }
+
+        @Override
+        public Response getResponse(final String ticketId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A CentralAuthenticationService recording the tickets the filter asks for.
+     */
+    private static final class StubCentralAuthenticationService implements CentralAuthenticationService {
+        private final List<String> destroyed = new ArrayList<String>();
+
+        private String credentialId;
+
+        private Service service;
+
+        private TicketException ticketGrantingTicketError;
+
+        private TicketException serviceTicketError;
+
+        private boolean unauthorized;
+
+        @Override
+        public String createTicketGrantingTicket(final Credential... credentials) throws TicketException {
+            if (this.ticketGrantingTicketError != null) {
+                throw this.ticketGrantingTicketError;
+            }
+            this.credentialId = credentials[0].getId();
+            return "TGT-2-new";
+        }
+
+        @Override
+        public String grantServiceTicket(final String ticketGrantingTicketId, final Service service)
+                throws TicketException {
+            if (this.serviceTicketError != null) {
+                throw this.serviceTicketError;
+            }
+            if (this.unauthorized) {
+                throw new UnauthorizedServiceException("screen.service.error.message", "unauthorized");
+            }
+            this.service = service;
+            return "ST-1-abc";
+        }
+
+        @Override
+        public String grantServiceTicket(final String ticketGrantingTicketId, final Service service,
+                                         final Credential... credentials) throws TicketException {
+            return grantServiceTicket(ticketGrantingTicketId, service);
+        }
+
+        @Override
+        public Assertion validateServiceTicket(final String serviceTicketId, final Service service) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<LogoutRequest> destroyTicketGrantingTicket(final String ticketGrantingTicketId) {
+            this.destroyed.add(ticketGrantingTicketId);
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String delegateTicketGrantingTicket(final String serviceTicketId,
+                                                   final Credential... credentials) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
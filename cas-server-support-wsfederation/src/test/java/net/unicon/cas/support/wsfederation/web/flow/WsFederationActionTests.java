@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 Unicon, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.unicon.cas.support.wsfederation.web.flow;
+
+import net.unicon.cas.support.wsfederation.WsFederationConfiguration;
+import net.unicon.cas.support.wsfederation.WsFederationContextCodec;
+import org.jasig.cas.CentralAuthenticationService;
+import org.jasig.cas.authentication.Credential;
+import org.jasig.cas.authentication.principal.AbstractWebApplicationService;
+import org.jasig.cas.authentication.principal.Response;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.logout.LogoutRequest;
+import org.jasig.cas.validation.Assertion;
+import org.jasig.cas.web.support.WebUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.util.CookieGenerator;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.test.MockRequestContext;
+
+import javax.servlet.http.Cookie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author John Gasper
+ * @since 1.0.1
+ */
+public class WsFederationActionTests {
+
+    StubCentralAuthenticationService centralAuthenticationService;
+
+    WsFederationAction action;
+
+    MockHttpServletRequest request;
+
+    MockHttpServletResponse response;
+
+    MockRequestContext context;
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        centralAuthenticationService = new StubCentralAuthenticationService();
+
+        final CookieGenerator cookieGenerator = new CookieGenerator();
+        cookieGenerator.setCookieName("TGC");
+        cookieGenerator.setCookiePath("/cas");
+
+        action = new WsFederationAction();
+        action.setCentralAuthenticationService(centralAuthenticationService);
+        action.setTicketGrantingTicketCookieGenerator(cookieGenerator);
+
+        request = new MockHttpServletRequest("GET", "/cas/login");
+        response = new MockHttpServletResponse();
+        context = new MockRequestContext();
+        context.setExternalContext(new ServletExternalContext(new MockServletContext(), request, response));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSignOut() throws Exception {
+        request.setParameter("wa", "wsignout1.0");
+        WebUtils.putTicketGrantingTicketInRequestScope(context, "TGT-1-abc");
+
+        final Event event = action.execute(context);
+
+        assertEquals("testSignOut() - event", "signout", event.getId());
+        assertEquals("testSignOut() - destroyed", Arrays.asList("TGT-1-abc"), centralAuthenticationService.destroyed);
+        assertSame("testSignOut() - logout requests", centralAuthenticationService.logoutRequests,
+                WebUtils.getLogoutRequests(context));
+        assertCookieRemoved("testSignOut()");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSignOutCleanup() throws Exception {
+        request.setParameter("wa", "wsignoutcleanup1.0");
+        WebUtils.putTicketGrantingTicketInFlowScope(context, "TGT-2-def");
+
+        final Event event = action.execute(context);
+
+        assertEquals("testSignOutCleanup() - event", "signout", event.getId());
+        assertEquals("testSignOutCleanup() - destroyed", Arrays.asList("TGT-2-def"),
+                centralAuthenticationService.destroyed);
+        assertSame("testSignOutCleanup() - logout requests", centralAuthenticationService.logoutRequests,
+                WebUtils.getLogoutRequests(context));
+        assertCookieRemoved("testSignOutCleanup()");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSignOutWithoutTicketGrantingTicket() throws Exception {
+        request.setParameter("wa", "wsignout1.0");
+
+        final Event event = action.execute(context);
+
+        assertEquals("testSignOutWithoutTicketGrantingTicket() - event", "signout", event.getId());
+        assertTrue("testSignOutWithoutTicketGrantingTicket() - destroyed",
+                centralAuthenticationService.destroyed.isEmpty());
+        assertNull("testSignOutWithoutTicketGrantingTicket() - logout requests", WebUtils.getLogoutRequests(context));
+        assertCookieRemoved("testSignOutWithoutTicketGrantingTicket()");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRedirectStateless() throws Exception {
+        setStateless();
+        context.getFlowScope().put("service", new SimpleWebApplicationServiceImpl("https://app.example.org/"));
+
+        assertEquals("testRedirectStateless() - event", "error", action.execute(context).getId());
+
+        final String authorizationUrl = context.getFlowScope().getString("WsFederationIdentityProviderUrl");
+        assertTrue("testRedirectStateless() - wctx", authorizationUrl.contains("&wctx="));
+        assertNull("testRedirectStateless() - no session", request.getSession(false));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRedirectStatelessOtherService() throws Exception {
+        setStateless();
+        final Service service = new TargetService("https://app.example.org/saml");
+        context.getFlowScope().put("service", service);
+
+        assertEquals("testRedirectStatelessOtherService() - event", "error", action.execute(context).getId());
+
+        final String authorizationUrl = context.getFlowScope().getString("WsFederationIdentityProviderUrl");
+        assertFalse("testRedirectStatelessOtherService() - no wctx", authorizationUrl.contains("&wctx="));
+        assertSame("testRedirectStatelessOtherService() - session", service,
+                request.getSession().getAttribute("service"));
+    }
+
+    /**
+     * sets an IdP configuration and a context codec on the action.
+     */
+    private void setStateless() {
+        final WsFederationConfiguration configuration = new WsFederationConfiguration();
+        configuration.setIdentityProviderUrl("https://adfs.example.com/adfs/ls/");
+        configuration.setIdentityProviderIdentifier("http://adfs.example.com/adfs/services/trust");
+        configuration.setRelyingPartyIdentifier("urn:federation:cas");
+        configuration.setSigningCertificateFiles(Collections.<Resource>singletonList(
+                new ClassPathResource("cas-encryption.crt")));
+        action.setConfiguration(configuration);
+
+        final WsFederationContextCodec codec = new WsFederationContextCodec();
+        codec.setSigningKey("0123456789abcdef0123456789abcdef");
+        action.setContextCodec(codec);
+    }
+
+    /**
+     * checks the ticket granting ticket cookie was expired in the response.
+     *
+     * @param test the name of the test
+     */
+    private void assertCookieRemoved(final String test) {
+        final Cookie cookie = response.getCookie("TGC");
+        assertNotNull(test + " - cookie", cookie);
+        assertEquals(test + " - cookie max age", 0, cookie.getMaxAge());
+        assertEquals(test + " - cookie path", "/cas", cookie.getPath());
+    }
+
+    /**
+     * A service that is not a CAS service, as a SAML 1.1 TARGET service is.
+     */
+    private static final class TargetService extends AbstractWebApplicationService {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * creates a service.
+         *
+         * @param id the service id
+         */
+        TargetService(final String id) {
+            super(id, id, null);
+        }
+
+        @Override
+        public Response getResponse(final String ticketId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A CentralAuthenticationService recording the ticket granting tickets destroyed by the action.
+     */
+    private static final class StubCentralAuthenticationService implements CentralAuthenticationService {
+        private final List<String> destroyed = new ArrayList<String>();
+
+        private final List<LogoutRequest> logoutRequests = Arrays.asList(
+                new LogoutRequest("ST-1-abc", new SimpleWebApplicationServiceImpl("https://app1.example.com")),
+                new LogoutRequest("ST-2-abc", new SimpleWebApplicationServiceImpl("https://app2.example.com")));
+
+        @Override
+        public String createTicketGrantingTicket(final Credential... credentials) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String grantServiceTicket(final String ticketGrantingTicketId, final Service service) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String grantServiceTicket(final String ticketGrantingTicketId, final Service service,
+                                         final Credential... credentials) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Assertion validateServiceTicket(final String serviceTicketId, final Service service) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<LogoutRequest> destroyTicketGrantingTicket(final String ticketGrantingTicketId) {
+            this.destroyed.add(ticketGrantingTicketId);
+            return this.logoutRequests;
+        }
+
+        @Override
+        public String delegateTicketGrantingTicket(final String serviceTicketId,
+                                                   final Credential... credentials) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}